@@ -0,0 +1,33 @@
+package com.github.messageme.benchmarks;
+
+import com.github.messageme.PhoneNumberNormalizer;
+
+/**
+ * Shared fixtures for the benchmarks.
+ */
+final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    /**
+     * @return a normalizer configured like the app's default (North American) config.xml
+     */
+    static PhoneNumberNormalizer newNormalizer() {
+        return new PhoneNumberNormalizer("1", 10, "1", "011");
+    }
+
+    /**
+     * @return the phone number of sender i, in one of the formats the SMS provider hands out
+     */
+    static String phoneNumber(int i) {
+        String national = String.valueOf(5550000000L + i * 7919L % 10000000L);
+        switch (i % 3) {
+            case 0:
+                return "+1" + national;
+            case 1:
+                return "(" + national.substring(0, 3) + ") " + national.substring(3, 6) + "-" + national.substring(6);
+            default:
+                return national;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.github.messageme.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes and decodes GSM SMS-DELIVER PDUs (3GPP TS 23.040) with 7-bit
+ * text, enough to synthesize broadcasts and to stand in for
+ * SmsMessage.createFromPdu off the device.
+ *
+ * Only the characters that have the same code in ASCII and the GSM default
+ * alphabet are supported: letters, digits, space and basic punctuation.
+ */
+public class GsmPdu {
+    /** Septets in a single-part message */
+    public static final int SINGLE_PART_LENGTH = 160;
+
+    /** Septets of text in each part of a concatenated message, after the 8-bit concatenation header */
+    public static final int MULTI_PART_LENGTH = 153;
+
+    private static final int FIRST_OCTET_DELIVER = 0x04;
+    private static final int FIRST_OCTET_UDHI = 0x40;
+    private static final int TYPE_INTERNATIONAL = 0x91;
+    private static final int TYPE_UNKNOWN = 0x81;
+    private static final int IEI_CONCAT_8BIT = 0x00;
+
+    /** A decoded PDU */
+    public static class Message {
+        public final String address;
+        public final String body;
+
+        Message(String address, String body) {
+            this.address = address;
+            this.body = body;
+        }
+    }
+
+    private GsmPdu() {
+    }
+
+    /**
+     * Encode a message, split over as many PDUs as it needs.
+     * @param address sender's number, digits with an optional leading "+"
+     * @param reference concatenation reference, 0-255, used if the message needs more than one part
+     */
+    public static List<byte[]> encode(String address, String text, int reference) {
+        List<byte[]> pdus = new ArrayList<byte[]>();
+        if (text.length() <= SINGLE_PART_LENGTH) {
+            pdus.add(encodePart(address, text, null));
+            return pdus;
+        }
+
+        int parts = (text.length() + MULTI_PART_LENGTH - 1) / MULTI_PART_LENGTH;
+        for (int i = 0; i < parts; i++) {
+            String part = text.substring(i * MULTI_PART_LENGTH, Math.min(text.length(), (i + 1) * MULTI_PART_LENGTH));
+            byte[] header = {
+                    5, IEI_CONCAT_8BIT, 3, (byte) reference, (byte) parts, (byte) (i + 1)
+            };
+            pdus.add(encodePart(address, part, header));
+        }
+        return pdus;
+    }
+
+    /**
+     * @param header user data header including its length octet, or null
+     */
+    private static byte[] encodePart(String address, String text, byte[] header) {
+        boolean international = address.startsWith("+");
+        String digits = international ? address.substring(1) : address;
+
+        // the header takes whole septets, with fill bits after it
+        int headerSeptets = header == null ? 0 : (header.length * 8 + 6) / 7;
+        int septets = headerSeptets + text.length();
+        byte[] userData = new byte[(septets * 7 + 7) / 8];
+        for (int i = 0; i < text.length(); i++) {
+            int septet = text.charAt(i) & 0x7f;
+            int bit = (headerSeptets + i) * 7;
+            userData[bit / 8] |= (byte) (septet << (bit % 8));
+            if (bit % 8 > 1) {
+                userData[bit / 8 + 1] |= (byte) (septet >> (8 - bit % 8));
+            }
+        }
+        if (header != null) {
+            System.arraycopy(header, 0, userData, 0, header.length);
+        }
+
+        int addressOctets = (digits.length() + 1) / 2;
+        byte[] pdu = new byte[1 + 1 + 2 + addressOctets + 2 + 7 + 1 + userData.length];
+        int i = 0;
+        pdu[i++] = 0; // no SMSC address
+        pdu[i++] = (byte) (FIRST_OCTET_DELIVER | (header != null ? FIRST_OCTET_UDHI : 0));
+        pdu[i++] = (byte) digits.length();
+        pdu[i++] = (byte) (international ? TYPE_INTERNATIONAL : TYPE_UNKNOWN);
+        for (int d = 0; d < digits.length(); d += 2) {
+            int low = digits.charAt(d) - '0';
+            int high = d + 1 < digits.length() ? digits.charAt(d + 1) - '0' : 0xf;
+            pdu[i++] = (byte) ((high << 4) | low);
+        }
+        pdu[i++] = 0; // protocol identifier
+        pdu[i++] = 0; // data coding scheme: GSM 7-bit
+        i += 7; // service centre timestamp, left as zeros
+        pdu[i++] = (byte) septets;
+        System.arraycopy(userData, 0, pdu, i, userData.length);
+        return pdu;
+    }
+
+    /**
+     * Decode a PDU made by {@link #encode}.
+     * @return the sender and the text of this part
+     */
+    public static Message decode(byte[] pdu) {
+        int i = (pdu[0] & 0xff) + 1;
+        boolean hasHeader = (pdu[i++] & FIRST_OCTET_UDHI) != 0;
+
+        int digits = pdu[i++] & 0xff;
+        boolean international = (pdu[i++] & 0xff) == TYPE_INTERNATIONAL;
+        StringBuilder address = new StringBuilder(digits + 1);
+        if (international) {
+            address.append('+');
+        }
+        for (int d = 0; d < digits; d++) {
+            int octet = pdu[i + d / 2] & 0xff;
+            address.append((char) ('0' + (d % 2 == 0 ? octet & 0xf : octet >> 4)));
+        }
+        i += (digits + 1) / 2;
+        i += 1 + 1 + 7; // protocol identifier, data coding scheme, timestamp
+
+        int septets = pdu[i++] & 0xff;
+        int userData = i;
+        int headerSeptets = hasHeader ? ((pdu[userData] & 0xff) * 8 + 8 + 6) / 7 : 0;
+
+        char[] text = new char[septets - headerSeptets];
+        for (int s = headerSeptets; s < septets; s++) {
+            int bit = s * 7;
+            int value = (pdu[userData + bit / 8] & 0xff) >> (bit % 8);
+            if (bit % 8 > 1) {
+                value |= pdu[userData + bit / 8 + 1] << (8 - bit % 8);
+            }
+            text[s - headerSeptets] = (char) (value & 0x7f);
+        }
+        return new Message(address.toString(), new String(text));
+    }
+}
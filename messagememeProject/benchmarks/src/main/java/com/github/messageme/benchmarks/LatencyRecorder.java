@@ -0,0 +1,63 @@
+package com.github.messageme.benchmarks;
+
+import java.util.Arrays;
+
+/**
+ * Collects the latencies of one operation, plus the store work it caused,
+ * and prints them as percentiles.  Single threaded.
+ */
+class LatencyRecorder {
+    private final String name;
+    private long[] nanos = new long[1024];
+    private int count;
+    private long queries;
+    private long rows;
+
+    LatencyRecorder(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param elapsedNanos how long one operation took
+     * @param queryCount store queries it made
+     * @param rowCount store rows it looked at
+     */
+    void record(long elapsedNanos, long queryCount, long rowCount) {
+        if (count == nanos.length) {
+            nanos = Arrays.copyOf(nanos, count * 2);
+        }
+        nanos[count++] = elapsedNanos;
+        queries += queryCount;
+        rows += rowCount;
+    }
+
+    static String header() {
+        return String.format("%-20s %8s %10s %10s %10s %10s %10s %12s",
+                "operation", "ops", "p50 us", "p90 us", "p99 us", "max us", "queries/op", "rows/op");
+    }
+
+    @Override
+    public String toString() {
+        if (count == 0) {
+            return String.format("%-20s %8d", name, 0);
+        }
+        long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        return String.format("%-20s %8d %10.1f %10.1f %10.1f %10.1f %10.2f %12.1f",
+                name, count,
+                percentile(sorted, 0.50) / 1000.0,
+                percentile(sorted, 0.90) / 1000.0,
+                percentile(sorted, 0.99) / 1000.0,
+                sorted[count - 1] / 1000.0,
+                (double) queries / count,
+                (double) rows / count);
+    }
+
+    /**
+     * Nearest-rank percentile.
+     */
+    private static long percentile(long[] sorted, double fraction) {
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.messageme.benchmarks;
+
+import com.github.messageme.ConcurrentNotificationIdManager;
+import com.github.messageme.FileNotificationIdManager;
+import com.github.messageme.StaticVarNotificationIdManager;
+import com.github.messageme.interfaces.NotificationIdManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Looking up the notification ID of a sender that already has one, which
+ * is what every incoming message and every observer pass does.
+ */
+@State(Scope.Benchmark)
+public class NotificationIdManagerBenchmark {
+    @Param({ "concurrent", "file", "static" })
+    public String implementation;
+
+    @Param({ "8", "64" })
+    public int senders;
+
+    private NotificationIdManager idManager;
+    private String[] addresses;
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        if ("file".equals(implementation)) {
+            file = File.createTempFile("notification_ids", null);
+            file.delete();
+            idManager = new FileNotificationIdManager(file, Benchmarks.newNormalizer());
+        }
+        else if ("static".equals(implementation)) {
+            idManager = new StaticVarNotificationIdManager();
+        }
+        else {
+            idManager = new ConcurrentNotificationIdManager(Benchmarks.newNormalizer());
+        }
+
+        addresses = new String[senders];
+        for (int i = 0; i < senders; i++) {
+            addresses[i] = Benchmarks.phoneNumber(i);
+            idManager.getId(addresses[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /** Each thread's place in the rotation of senders */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public int getId(Cursor cursor) {
+        String address = addresses[cursor.next];
+        cursor.next = cursor.next + 1 == addresses.length ? 0 : cursor.next + 1;
+        return idManager.getId(address, false);
+    }
+}
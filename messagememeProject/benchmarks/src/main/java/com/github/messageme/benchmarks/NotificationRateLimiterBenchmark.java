@@ -0,0 +1,46 @@
+package com.github.messageme.benchmarks;
+
+import com.github.messageme.IncomingSms;
+import com.github.messageme.NotificationRateLimiter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * NotificationRateLimiter.acquire for a stream of messages spread over
+ * some senders, a millisecond apart, releasing held updates as their
+ * tokens arrive.  One sender is a flood; many senders mostly get tokens.
+ */
+@State(Scope.Thread)
+public class NotificationRateLimiterBenchmark {
+    @Param({ "1", "50", "1000" })
+    public int senders;
+
+    private NotificationRateLimiter limiter;
+    private IncomingSms sms;
+    private long now;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        limiter = new NotificationRateLimiter(12, 3);
+        sms = new IncomingSms(Benchmarks.phoneNumber(0), "hello", 0);
+    }
+
+    @Benchmark
+    public long acquire() {
+        long key = next + 1;
+        next = next + 1 == senders ? 0 : next + 1;
+        now++;
+
+        long delay = limiter.acquire(key, sms, now);
+        if (delay > 0) {
+            // the pipeline would take it after the delay; take it now so the held update doesn't pin the bucket
+            limiter.takePending(key, now + delay);
+        }
+        return delay;
+    }
+}
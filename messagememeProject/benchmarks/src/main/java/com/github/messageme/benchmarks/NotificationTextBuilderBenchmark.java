@@ -0,0 +1,54 @@
+package com.github.messageme.benchmarks;
+
+import com.github.messageme.NotificationTextBuilder;
+import com.github.messageme.UnreadPreview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Building the notification text for a sender with some unread messages,
+ * with the app's default length limit and preview size.
+ */
+@State(Scope.Thread)
+public class NotificationTextBuilderBenchmark {
+    @Param({ "0", "3", "10" })
+    public int unread;
+
+    @Param({ "20", "160" })
+    public int messageLength;
+
+    private final NotificationTextBuilder builder = new NotificationTextBuilder("   ", 255);
+    private UnreadPreview preview;
+    private String message;
+
+    @Setup
+    public void setUp() {
+        List<String> bodies = new ArrayList<String>();
+        for (int i = 0; i < unread; i++) {
+            bodies.add(body(i));
+        }
+        preview = new UnreadPreview(unread, bodies);
+        message = body(unread);
+    }
+
+    private String body(int i) {
+        StringBuilder body = new StringBuilder(messageLength);
+        while (body.length() < messageLength) {
+            body.append("message ").append(i).append(' ');
+        }
+        body.setLength(messageLength);
+        return body.toString();
+    }
+
+    @Benchmark
+    public CharSequence build() {
+        return builder.build(preview, message);
+    }
+}
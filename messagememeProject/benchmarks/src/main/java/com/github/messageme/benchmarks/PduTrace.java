@@ -0,0 +1,196 @@
+package com.github.messageme.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A sequence of SMS_RECEIVED broadcasts to replay: when each arrived and
+ * the PDUs it carried.
+ *
+ * Traces can be synthesized from a few burst patterns or read from a text
+ * file with one broadcast per line, "offsetMillis hexPdu[,hexPdu...]", so
+ * broadcasts captured on a device can be replayed too.  Lines starting
+ * with "#" are ignored.
+ */
+public class PduTrace {
+    /** One SMS_RECEIVED broadcast */
+    public static class Broadcast {
+        /** ms after the start of the trace */
+        public final long offsetMillis;
+        public final List<byte[]> pdus;
+
+        public Broadcast(long offsetMillis, List<byte[]> pdus) {
+            this.offsetMillis = offsetMillis;
+            this.pdus = pdus;
+        }
+    }
+
+    private static final String WORDS = "ok see you at the station running late call me when free thanks "
+            + "dinner tonight sure who is bringing the cake lol";
+
+    private final List<Broadcast> broadcasts;
+
+    private PduTrace(List<Broadcast> broadcasts) {
+        this.broadcasts = broadcasts;
+    }
+
+    public List<Broadcast> getBroadcasts() {
+        return broadcasts;
+    }
+
+    /**
+     * @return total messages in the trace, counting each part of a concatenated message
+     */
+    public int getPduCount() {
+        int count = 0;
+        for (Broadcast broadcast : broadcasts) {
+            count += broadcast.pdus.size();
+        }
+        return count;
+    }
+
+    /**
+     * Synthesize a trace.
+     * @param pattern "steady": a few senders chatting at a normal pace;
+     *                "group": a group chat storm, many senders answering each other within seconds;
+     *                "otp": one short code sender flooding short messages;
+     *                "long": concatenated messages of two to five parts
+     * @param broadcasts broadcasts to generate
+     */
+    public static PduTrace synthesize(String pattern, int broadcasts, int senders, long seed) {
+        Random random = new Random(seed);
+        List<Broadcast> trace = new ArrayList<Broadcast>(broadcasts);
+        long offset = 0;
+
+        for (int i = 0; i < broadcasts; i++) {
+            String address;
+            String body;
+            if ("group".equals(pattern)) {
+                offset += random.nextInt(400);
+                address = address(random.nextInt(senders));
+                body = words(random, 1 + random.nextInt(12));
+            }
+            else if ("otp".equals(pattern)) {
+                offset += 20 + random.nextInt(80);
+                address = "+12125550100";
+                body = "Your code is " + (100000 + random.nextInt(900000));
+            }
+            else if ("long".equals(pattern)) {
+                offset += 500 + random.nextInt(5000);
+                address = address(random.nextInt(senders));
+                body = words(random, 50 + random.nextInt(120));
+            }
+            else if ("steady".equals(pattern)) {
+                offset += 2000 + random.nextInt(30000);
+                address = address(random.nextInt(senders));
+                body = words(random, 1 + random.nextInt(30));
+            }
+            else {
+                throw new IllegalArgumentException("Unknown trace pattern " + pattern);
+            }
+            trace.add(new Broadcast(offset, GsmPdu.encode(address, body, i & 0xff)));
+        }
+        return new PduTrace(trace);
+    }
+
+    /**
+     * @return sender i's number as the network delivers it
+     */
+    private static String address(int i) {
+        String number = Benchmarks.phoneNumber(i);
+        StringBuilder address = new StringBuilder(number.length());
+        for (int c = 0; c < number.length(); c++) {
+            char ch = number.charAt(c);
+            if (ch == '+' || (ch >= '0' && ch <= '9')) {
+                address.append(ch);
+            }
+        }
+        return address.toString();
+    }
+
+    private static String words(Random random, int count) {
+        String[] words = WORDS.split(" ");
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                body.append(' ');
+            }
+            body.append(words[random.nextInt(words.length)]);
+        }
+        return body.toString();
+    }
+
+    public static PduTrace read(File file) throws IOException {
+        List<Broadcast> trace = new ArrayList<Broadcast>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] fields = line.split("\\s+");
+                if (fields.length != 2) {
+                    throw new IOException("Bad trace line: " + line);
+                }
+                List<byte[]> pdus = new ArrayList<byte[]>();
+                for (String hex : fields[1].split(",")) {
+                    pdus.add(fromHex(hex));
+                }
+                trace.add(new Broadcast(Long.parseLong(fields[0]), pdus));
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return new PduTrace(trace);
+    }
+
+    public void write(File file) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+        try {
+            for (Broadcast broadcast : broadcasts) {
+                writer.write(Long.toString(broadcast.offsetMillis));
+                writer.write(' ');
+                for (int i = 0; i < broadcast.pdus.size(); i++) {
+                    if (i > 0) {
+                        writer.write(',');
+                    }
+                    writer.write(toHex(broadcast.pdus.get(i)));
+                }
+                writer.newLine();
+            }
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    private static byte[] fromHex(String hex) throws IOException {
+        if (hex.length() % 2 != 0) {
+            throw new IOException("Odd length PDU: " + hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,47 @@
+package com.github.messageme.benchmarks;
+
+import com.github.messageme.PhoneNumberNormalizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * PhoneNumberNormalizer.getKey over a rotating set of senders.  With fewer
+ * senders than the memo holds every call is a hit; with more, every call
+ * parses the address again.
+ */
+@State(Scope.Thread)
+public class PhoneNumberNormalizerBenchmark {
+    @Param({ "16", "4096" })
+    public int senders;
+
+    private PhoneNumberNormalizer normalizer;
+    private String[] addresses;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        normalizer = Benchmarks.newNormalizer();
+        addresses = new String[senders];
+        for (int i = 0; i < senders; i++) {
+            addresses[i] = Benchmarks.phoneNumber(i);
+        }
+    }
+
+    @Benchmark
+    public long getKey() {
+        String address = addresses[next];
+        next = next + 1 == addresses.length ? 0 : next + 1;
+        return normalizer.getKey(address);
+    }
+
+    @Benchmark
+    public String getCanonical() {
+        String address = addresses[next];
+        next = next + 1 == addresses.length ? 0 : next + 1;
+        return normalizer.getCanonical(address);
+    }
+}
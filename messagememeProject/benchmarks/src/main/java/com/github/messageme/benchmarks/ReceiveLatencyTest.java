@@ -0,0 +1,367 @@
+package com.github.messageme.benchmarks;
+
+import com.github.messageme.ConcurrentNotificationIdManager;
+import com.github.messageme.Contact;
+import com.github.messageme.EnrichedSms;
+import com.github.messageme.InMemorySmsStore;
+import com.github.messageme.IncomingSms;
+import com.github.messageme.NotificationRateLimiter;
+import com.github.messageme.NotificationScheduler;
+import com.github.messageme.NotificationTextBuilder;
+import com.github.messageme.PduCoalescer;
+import com.github.messageme.PhoneNumberNormalizer;
+import com.github.messageme.ReceivePipeline;
+import com.github.messageme.UnreadMirror;
+import com.github.messageme.interfaces.Clock;
+import com.github.messageme.interfaces.ContactLookup;
+import com.github.messageme.interfaces.DelayScheduler;
+import com.github.messageme.interfaces.NotificationIdManager;
+import com.github.messageme.interfaces.Notifier;
+import com.github.messageme.interfaces.PduDecoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the time from a broadcast's PDUs arriving to its notification
+ * being posted, through the app's ReceivePipeline and NotificationScheduler
+ * on their own threads: decoding on a single thread, the rate limit and
+ * enrich stages on a bounded worker pool, then the scheduler's frames.  The
+ * platform parts are stood in for: PDUs are decoded with GsmPdu, every
+ * sender is a contact, and posting means the Notifier being called, which
+ * is where the device calls NotificationManager.notify.
+ *
+ * The pipeline's clock is real time scaled by the replay speed, so the rate
+ * limiter and the frames see the trace's pace.  Each message is timed once,
+ * by the first post that shows it: its own notification, a merged update
+ * (timed from the newest held message, so it includes the hold), or the
+ * summary.  Posts are checked to be in arrival order for each sender.
+ *
+ * Unlike TraceReplay, which times the steps on one thread, this includes
+ * the waits between stages and behind other senders.  Options are
+ * name=value arguments, e.g.
+ *
+ *   ./gradlew :benchmarks:latencyTest -PlatencyTest='pattern=group broadcasts=2000 speed=10 threads=2'
+ *
+ * speed=0 (the default) submits the trace as fast as possible, on a real
+ * time clock, which shows how the queues behave under a burst; otherwise
+ * it's paced at that multiple of real time.
+ */
+public class ReceiveLatencyTest {
+    private static final int PREVIEW_MESSAGES = 10;
+    private static final long MIRROR_GRACE_MILLIS = 10000;
+    private static final long TIMEOUT_MILLIS = 8000;
+
+    private final PduTrace trace;
+    private final double speed;
+
+    /** pipeline clock ms per real ms */
+    private final double rate;
+
+    /** System.nanoTime() the pipeline's clock starts at */
+    private final long origin = System.nanoTime();
+
+    private final InMemorySmsStore store;
+    private final NotificationRateLimiter rateLimiter;
+    private final NotificationTextBuilder textBuilder;
+
+    private final ExecutorService decodeThread = Executors.newSingleThreadExecutor();
+    private final ThreadPoolExecutor workerPool;
+    private final ScheduledExecutorService timerThread = Executors.newSingleThreadScheduledExecutor();
+    private final ScheduledExecutorService frameThread = Executors.newSingleThreadScheduledExecutor();
+    private final ReceivePipeline pipeline;
+
+    /** tasks queued or running on any of the pipeline's threads, plus open broadcasts */
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /** System.nanoTime() each message arrived, by sender and arrival, until a post shows it */
+    private final ConcurrentHashMap<String, Long> arrivals = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicInteger finished = new AtomicInteger();
+
+    /** the notifier is only called on the frame thread, so these aren't shared */
+    private final LatencyRecorder pduToPost = new LatencyRecorder("PDU to notify");
+    private final LatencyRecorder mergedToPost = new LatencyRecorder("merged to notify");
+    private final LatencyRecorder pduToSummary = new LatencyRecorder("PDU to summary");
+    private final HashMap<String, Long> lastPosted = new HashMap<String, Long>();
+    private long outOfOrder;
+    private long posts;
+    private long summaries;
+    private long textLength;
+
+    /** System.nanoTime() of the last post; read after the frame thread has stopped */
+    private volatile long lastPostAt;
+
+    /**
+     * @param trace the broadcasts to replay
+     * @param speed multiple of real time to pace the trace at, or 0 for as fast as possible
+     * @param threads worker threads, like receive_pool_size
+     * @param queueCapacity worker queue, like receive_queue_capacity
+     * @param frameMillis like render_frame_ms
+     * @param summaryThreshold like summary_sender_threshold
+     * @param inboxRows messages already in the inbox before the trace starts
+     */
+    public ReceiveLatencyTest(PduTrace trace, double speed, int threads, int queueCapacity, long frameMillis,
+                              int summaryThreshold, int inboxRows, long seed) {
+        this.trace = trace;
+        this.speed = speed;
+        rate = speed > 0 ? speed : 1;
+
+        PhoneNumberNormalizer normalizer = Benchmarks.newNormalizer();
+        store = new InMemorySmsStore(normalizer);
+        new SyntheticInbox(seed, 2000).fill(store, inboxRows, 0.05);
+
+        NotificationIdManager idManager = new ConcurrentNotificationIdManager(normalizer);
+        rateLimiter = new NotificationRateLimiter(12, 3);
+        textBuilder = new NotificationTextBuilder(ReceivePipeline.MESSAGE_SEPARATOR, 255);
+
+        Clock clock = new Clock() {
+            @Override
+            public long now() {
+                return clockNow();
+            }
+        };
+        PduDecoder decoder = new PduDecoder() {
+            @Override
+            public IncomingSms decode(byte[] pdu, long receivedAt) {
+                GsmPdu.Message part = GsmPdu.decode(pdu);
+                return new IncomingSms(part.address, part.body, receivedAt);
+            }
+        };
+        ContactLookup everyoneIsAContact = new ContactLookup() {
+            @Override
+            public Contact lookup(String phoneNumber) {
+                return new Contact(phoneNumber, phoneNumber, 0, 0, 0);
+            }
+        };
+
+        workerPool = ReceivePipeline.newWorkerPool(threads, queueCapacity, Executors.defaultThreadFactory());
+        NotificationScheduler scheduler = new NotificationScheduler(new TimingNotifier(), idManager,
+                scaled(frameThread), frameMillis, summaryThreshold);
+        pipeline = new ReceivePipeline(counted(decodeThread), counted(workerPool), scaled(timerThread), clock,
+                TIMEOUT_MILLIS, decoder, everyoneIsAContact,
+                new UnreadMirror(store, PREVIEW_MESSAGES, MIRROR_GRACE_MILLIS), idManager,
+                rateLimiter, normalizer, scheduler);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                System.err.println("Options are name=value, e.g. pattern=group broadcasts=2000 senders=50 "
+                        + "speed=0 threads=2 queue=64 frame=100 summary=4 rows=10000 seed=1, or trace=file");
+                System.exit(1);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        long seed = Long.parseLong(get(options, "seed", "1"));
+        PduTrace trace;
+        if (options.containsKey("trace")) {
+            trace = PduTrace.read(new File(options.get("trace")));
+        }
+        else {
+            trace = PduTrace.synthesize(get(options, "pattern", "group"),
+                    Integer.parseInt(get(options, "broadcasts", "2000")),
+                    Integer.parseInt(get(options, "senders", "50")), seed);
+        }
+
+        new ReceiveLatencyTest(trace, Double.parseDouble(get(options, "speed", "0")),
+                Integer.parseInt(get(options, "threads", "2")),
+                Integer.parseInt(get(options, "queue", "64")),
+                Long.parseLong(get(options, "frame", "100")),
+                Integer.parseInt(get(options, "summary", "4")),
+                Integer.parseInt(get(options, "rows", "10000")), seed).run();
+    }
+
+    public void run() throws InterruptedException {
+        System.out.println("trace: " + trace.getBroadcasts().size() + " broadcasts, " + trace.getPduCount() + " PDUs");
+
+        long start = System.nanoTime();
+        for (PduTrace.Broadcast broadcast : trace.getBroadcasts()) {
+            if (speed > 0) {
+                waitUntil(start + (long) (broadcast.offsetMillis * 1000000L / speed));
+            }
+            submit(broadcast.pdus);
+        }
+
+        // held updates and frames queue more work, and the timeouts stay scheduled, so wait until nothing is left
+        while (outstanding.get() > 0) {
+            Thread.sleep(10);
+        }
+        decodeThread.shutdown();
+        workerPool.shutdown();
+        timerThread.shutdown();
+        frameThread.shutdown();
+        frameThread.awaitTermination(1, TimeUnit.SECONDS);
+
+        System.out.println(String.format("messages: %d, posts: %d (%d merged), summaries: %d in %.2f s",
+                messages.get(), posts, rateLimiter.getMergedRenderCount(), summaries, (lastPostAt - start) / 1e9));
+        System.out.println("broadcasts finished: " + finished.get());
+        System.out.println("held or replaced before a post showed them: " + arrivals.size());
+        System.out.println("posted out of order: " + outOfOrder);
+        System.out.println(String.format("average text length: %.1f", posts == 0 ? 0.0 : (double) textLength / posts));
+        System.out.println(LatencyRecorder.header());
+        System.out.println(pduToPost);
+        System.out.println(mergedToPost);
+        System.out.println(pduToSummary);
+    }
+
+    /**
+     * The broadcast receiver's part: hand the PDUs to the pipeline, noting when each message arrived.
+     */
+    private void submit(List<byte[]> pdus) {
+        long receivedAt = clockNow();
+
+        // the messaging app writes the messages while we handle them
+        PduCoalescer coalescer = new PduCoalescer(ReceivePipeline.MESSAGE_SEPARATOR);
+        for (byte[] pdu : pdus) {
+            GsmPdu.Message part = GsmPdu.decode(pdu);
+            coalescer.add(part.address, part.body, pdu);
+        }
+        Map<String, String> decoded = coalescer.getMessages();
+        for (Map.Entry<String, String> message : decoded.entrySet()) {
+            store.deliver(message.getKey(), message.getValue(), receivedAt, false);
+        }
+        messages.addAndGet(decoded.size());
+
+        long arrival = System.nanoTime();
+        for (String address : decoded.keySet()) {
+            // two broadcasts from a sender within one clock tick are both timed from the first
+            arrivals.putIfAbsent(arrivalKey(address, receivedAt), arrival);
+        }
+
+        outstanding.incrementAndGet();
+        pipeline.submit(pdus, receivedAt, new Runnable() {
+            @Override
+            public void run() {
+                finished.incrementAndGet();
+                outstanding.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * @return the pipeline's clock, in trace ms
+     */
+    private long clockNow() {
+        return (long) ((System.nanoTime() - origin) * rate / 1000000L);
+    }
+
+    private static String arrivalKey(String address, long receivedAt) {
+        return address + '@' + receivedAt;
+    }
+
+    /**
+     * Times each message at the first post that shows it.
+     */
+    private class TimingNotifier implements Notifier {
+        @Override
+        public void post(EnrichedSms enriched) {
+            long now = System.nanoTime();
+            posts++;
+            textLength += textBuilder.build(enriched.unread, enriched.sms.body).length();
+            shown(enriched.sms, now, enriched.sms.messageCount > 1 ? mergedToPost : pduToPost);
+        }
+
+        @Override
+        public void postSummary(List<EnrichedSms> newestFirst) {
+            long now = System.nanoTime();
+            summaries++;
+            for (EnrichedSms enriched : newestFirst) {
+                shown(enriched.sms, now, pduToSummary);
+            }
+        }
+
+        @Override
+        public void cancel(int notificationId) {
+        }
+
+        @Override
+        public void cancelSummary() {
+        }
+
+        private void shown(IncomingSms sms, long now, LatencyRecorder recorder) {
+            Long arrival = arrivals.remove(arrivalKey(sms.phoneNumber, sms.receivedAt));
+            if (arrival != null) {
+                recorder.record(now - arrival, 0, 0);
+            }
+
+            Long previous = lastPosted.put(sms.phoneNumber, sms.receivedAt);
+            if (previous != null && previous > sms.receivedAt) {
+                outOfOrder++;
+            }
+            lastPostAt = now;
+        }
+    }
+
+    /**
+     * Count the tasks run on an executor as outstanding until they're done.
+     */
+    private Executor counted(final Executor executor) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                outstanding.incrementAndGet();
+                executor.execute(countedTask(task));
+            }
+        };
+    }
+
+    /**
+     * Run delayed tasks on the pipeline's clock, counting them as outstanding until they're done.
+     */
+    private DelayScheduler scaled(final ScheduledExecutorService executor) {
+        return new DelayScheduler() {
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                outstanding.incrementAndGet();
+                executor.schedule(countedTask(task), (long) (delayMillis * 1000 / rate), TimeUnit.MICROSECONDS);
+            }
+        };
+    }
+
+    private Runnable countedTask(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                }
+                finally {
+                    outstanding.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    private static void waitUntil(long nanoTime) {
+        long remaining;
+        while ((remaining = nanoTime - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(remaining / 1000000L, (int) (remaining % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static String get(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+}
@@ -0,0 +1,214 @@
+package com.github.messageme.benchmarks;
+
+import com.github.messageme.InMemorySmsStore;
+import com.github.messageme.LongIntMap;
+import com.github.messageme.ThreadIdCache;
+import com.github.messageme.UnreadTracker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Load test for the unread queries at inbox sizes we can't reproduce on a
+ * device: a synthetic inbox in an InMemorySmsStore, driven the way the app
+ * drives the SMS provider.
+ *
+ * Each round, messages arrive for random senders with notifications, one of
+ * them is shown (getUnread / getUnreadPreview), one is marked read, and the
+ * observer reconciles its counts, both with a full pass and with just the
+ * changed rows, as SmsObserver.onChange does.  A full getUnreadCounts scan
+ * is timed for comparison.  The sender's thread ID is looked up through a
+ * ThreadIdCache each round, and again after a dismissal drops it, to show
+ * what a hit saves over the provider lookup.  Lookups from these read paths
+ * must not create threads, so the thread count printed at the end should be
+ * no more than the number of senders.
+ *
+ * Options are name=value arguments, e.g.
+ *
+ *   ./gradlew :benchmarks:loadTest -PloadTest='rows=200000 active=500'
+ *
+ * Prints latency percentiles, and queries and rows examined per operation.
+ */
+public class SmsLoadTest {
+    private final int rows;
+    private final int senders;
+    private final int active;
+    private final double unreadFraction;
+    private final int rounds;
+    private final int warmupRounds;
+    private final long seed;
+
+    private InMemorySmsStore store;
+    private SyntheticInbox inbox;
+    private Random random;
+    private List<String> activeNumbers;
+    private UnreadTracker tracker;
+    private ThreadIdCache threadIds;
+    private final LongIntMap counts = new LongIntMap(256);
+
+    private final Map<String, LatencyRecorder> recorders = new HashMap<String, LatencyRecorder>();
+    private final List<String> order = new ArrayList<String>();
+
+    /** One timed call into the store */
+    private abstract static class Operation {
+        abstract void run();
+    }
+
+    public SmsLoadTest(Map<String, String> options) {
+        rows = getInt(options, "rows", 50000);
+        senders = getInt(options, "senders", 2000);
+        active = getInt(options, "active", 200);
+        unreadFraction = Double.parseDouble(get(options, "unread", "0.05"));
+        rounds = getInt(options, "rounds", 2000);
+        warmupRounds = getInt(options, "warmup", 500);
+        seed = Long.parseLong(get(options, "seed", "1"));
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                System.err.println("Options are name=value, e.g. rows=50000 senders=2000 active=200 "
+                        + "unread=0.05 rounds=2000 warmup=500 seed=1");
+                System.exit(1);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        new SmsLoadTest(options).run();
+    }
+
+    public void run() {
+        setUp();
+        System.out.println("inbox: " + store.size() + " rows, " + senders + " senders, "
+                + active + " with notifications, " + unreadFraction + " unread");
+
+        for (int i = 0; i < warmupRounds; i++) {
+            round();
+        }
+        recorders.clear();
+        order.clear();
+        for (int i = 0; i < rounds; i++) {
+            round();
+        }
+
+        System.out.println(LatencyRecorder.header());
+        for (String name : order) {
+            System.out.println(recorders.get(name));
+        }
+        System.out.println("threads: " + store.getThreadCount() + " for " + senders + " senders");
+    }
+
+    private void setUp() {
+        store = new InMemorySmsStore(Benchmarks.newNormalizer());
+        inbox = new SyntheticInbox(seed, senders);
+        inbox.fill(store, rows, unreadFraction);
+        random = new Random(seed);
+
+        // the senders with notifications are the busiest ones, like on a real phone
+        activeNumbers = new ArrayList<String>(active);
+        for (int i = 0; i < active; i++) {
+            activeNumbers.add(Benchmarks.phoneNumber(i));
+        }
+        tracker = new UnreadTracker(store);
+        tracker.update(activeNumbers, counts);
+        threadIds = new ThreadIdCache(store, store.getNormalizer());
+    }
+
+    private void round() {
+        final String sender = activeNumbers.get(random.nextInt(activeNumbers.size()));
+
+        // a few messages arrive; the observer hears about each row
+        int arrivals = 1 + random.nextInt(3);
+        final List<Long> changed = new ArrayList<Long>(arrivals);
+        for (int i = 0; i < arrivals; i++) {
+            changed.add(store.deliver(sender, inbox.nextBody(), System.currentTimeMillis(), false));
+        }
+        time("observer rows", new Operation() {
+            @Override
+            void run() {
+                tracker.updateRows(activeNumbers, changed, counts);
+            }
+        });
+
+        time("thread ID", new Operation() {
+            @Override
+            void run() {
+                threadIds.getThreadId(sender);
+            }
+        });
+        time("getUnreadPreview", new Operation() {
+            @Override
+            void run() {
+                store.getUnreadPreview(sender, 10);
+            }
+        });
+        time("getUnread", new Operation() {
+            @Override
+            void run() {
+                store.getUnread(sender);
+            }
+        });
+
+        // sometimes the user reads the conversation; the observer gets a change without row IDs
+        if (random.nextInt(4) == 0) {
+            final String reader = activeNumbers.get(random.nextInt(activeNumbers.size()));
+            time("markRead", new Operation() {
+                @Override
+                void run() {
+                    store.markRead(reader);
+                }
+            });
+            time("observer full", new Operation() {
+                @Override
+                void run() {
+                    tracker.update(activeNumbers, counts);
+                }
+            });
+
+            // reading dismisses the notification, which drops the cached thread
+            threadIds.invalidate(reader);
+            time("thread ID miss", new Operation() {
+                @Override
+                void run() {
+                    threadIds.getThreadId(reader);
+                }
+            });
+        }
+
+        time("getUnreadCounts", new Operation() {
+            @Override
+            void run() {
+                store.getUnreadCounts(counts);
+            }
+        });
+    }
+
+    private void time(String name, Operation operation) {
+        long queries = store.getQueryCount();
+        long examined = store.getRowsExamined();
+        long start = System.nanoTime();
+        operation.run();
+        long elapsed = System.nanoTime() - start;
+
+        LatencyRecorder recorder = recorders.get(name);
+        if (recorder == null) {
+            recorder = new LatencyRecorder(name);
+            recorders.put(name, recorder);
+            order.add(name);
+        }
+        recorder.record(elapsed, store.getQueryCount() - queries, store.getRowsExamined() - examined);
+    }
+
+    private static String get(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private static int getInt(Map<String, String> options, String name, int defaultValue) {
+        return Integer.parseInt(get(options, name, Integer.toString(defaultValue)));
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.messageme.benchmarks;
+
+import com.github.messageme.InMemorySmsStore;
+
+import java.util.Random;
+
+/**
+ * Generates a repeatable inbox: the same seed and sizes give the same
+ * senders, bodies and read states.
+ *
+ * Traffic is skewed the way real inboxes are, so a few senders have most
+ * of the messages and the rest have a handful each.  The newest messages
+ * are the unread ones, as if the user had caught up at some point.
+ */
+public class SyntheticInbox {
+    private static final String[] WORDS = {
+            "ok", "see", "you", "at", "the", "station", "running", "late", "call", "me", "when",
+            "free", "thanks", "dinner", "tonight", "?", "lol", "sure", "your", "code", "is", "4821"
+    };
+
+    /** date of the first message, 2014-01-01 */
+    private static final long START_DATE = 1388534400000L;
+
+    private final Random random;
+    private final int senders;
+
+    public SyntheticInbox(long seed, int senders) {
+        this.random = new Random(seed);
+        this.senders = senders;
+    }
+
+    /**
+     * Fill a store.
+     * @param rows messages to add
+     * @param unreadFraction share of the messages, the newest ones, left unread
+     */
+    public void fill(InMemorySmsStore store, int rows, double unreadFraction) {
+        int firstUnread = rows - (int) Math.round(rows * unreadFraction);
+        for (int i = 0; i < rows; i++) {
+            store.deliver(nextSender(), nextBody(), START_DATE + i * 60000L, i < firstUnread);
+        }
+    }
+
+    /**
+     * @return a sender's phone number, favoring the first few senders
+     */
+    public String nextSender() {
+        // squaring a uniform value gives the low indexes most of the traffic
+        double u = random.nextDouble();
+        return Benchmarks.phoneNumber((int) (senders * u * u));
+    }
+
+    /**
+     * @return a message body of 1 to 30 words
+     */
+    public String nextBody() {
+        int words = 1 + random.nextInt(30);
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                body.append(' ');
+            }
+            body.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return body.toString();
+    }
+
+    public Random getRandom() {
+        return random;
+    }
+}
@@ -0,0 +1,371 @@
+package com.github.messageme.benchmarks;
+
+import com.github.messageme.ConcurrentNotificationIdManager;
+import com.github.messageme.Contact;
+import com.github.messageme.EnrichedSms;
+import com.github.messageme.InMemorySmsStore;
+import com.github.messageme.IncomingSms;
+import com.github.messageme.NotificationRateLimiter;
+import com.github.messageme.NotificationScheduler;
+import com.github.messageme.NotificationTextBuilder;
+import com.github.messageme.PduCoalescer;
+import com.github.messageme.PhoneNumberNormalizer;
+import com.github.messageme.ReceivePipeline;
+import com.github.messageme.UnreadMirror;
+import com.github.messageme.interfaces.Clock;
+import com.github.messageme.interfaces.ContactLookup;
+import com.github.messageme.interfaces.DelayScheduler;
+import com.github.messageme.interfaces.NotificationIdManager;
+import com.github.messageme.interfaces.Notifier;
+import com.github.messageme.interfaces.PduDecoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Replays a trace of SMS_RECEIVED broadcasts through the receive path on
+ * the JVM, to size it against burst patterns before a release.
+ *
+ * Each broadcast goes through the app's ReceivePipeline and
+ * NotificationScheduler, with the Android parts stood in for: PDUs are
+ * decoded with GsmPdu, every sender is a contact, and the notifier builds
+ * the notification text instead of posting it.  Then the messages are
+ * written to the inbox, as the messaging app would.
+ *
+ * The replay runs on one thread: the pipeline's executors run tasks where
+ * they're submitted, and its clock is the trace's.  Held updates, frames
+ * and timeouts run when the trace clock reaches them.  The unread mirror is
+ * reconciled every five minutes of trace time like the app's.
+ *
+ * Latency is the time to handle a broadcast up to the frame it's posted in
+ * (plus any wait behind earlier ones when paced); frames and merged renders
+ * are timed on their own.  Allocation is read from the replay thread.
+ * Options are name=value arguments, e.g.
+ *
+ *   ./gradlew :benchmarks:replay -Preplay='pattern=group broadcasts=20000 speed=10'
+ *   ./gradlew :benchmarks:replay -Preplay='trace=/path/to/capture.txt'
+ *
+ * speed=0 (the default) replays as fast as possible; otherwise the trace is
+ * paced at that multiple of real time.
+ */
+public class TraceReplay {
+    private static final int PREVIEW_MESSAGES = 10;
+    private static final long MIRROR_GRACE_MILLIS = 10000;
+    private static final long MIRROR_RECONCILE_MILLIS = 300000;
+    private static final long TIMEOUT_MILLIS = 8000;
+
+    private static final Executor SAME_THREAD = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    private final PduTrace trace;
+    private final double speed;
+
+    private final InMemorySmsStore store;
+    private final NotificationRateLimiter rateLimiter;
+    private final NotificationTextBuilder textBuilder;
+    private final UnreadMirror mirror;
+    private final ReceivePipeline pipeline;
+    private long nextReconcile = MIRROR_RECONCILE_MILLIS;
+
+    /** the trace clock, ms after the start of the trace */
+    private long now = 0;
+
+    /** delayed tasks in trace time order */
+    private final PriorityQueue<DelayedTask> delayed = new PriorityQueue<DelayedTask>();
+    private long taskCount;
+
+    private final LatencyRecorder broadcastLatency = new LatencyRecorder("broadcast");
+    private final LatencyRecorder mergedLatency = new LatencyRecorder("merged render");
+    private final LatencyRecorder frameLatency = new LatencyRecorder("frame");
+
+    private long messages;
+    private long renders;
+    private long summaries;
+    private long textLength;
+
+    private static class DelayedTask implements Comparable<DelayedTask> {
+        final long due;
+
+        /** keeps tasks due at the same time in the order they were scheduled */
+        final long sequence;
+        final Runnable task;
+        final LatencyRecorder recorder;
+
+        DelayedTask(long due, long sequence, Runnable task, LatencyRecorder recorder) {
+            this.due = due;
+            this.sequence = sequence;
+            this.task = task;
+            this.recorder = recorder;
+        }
+
+        @Override
+        public int compareTo(DelayedTask other) {
+            if (due != other.due) {
+                return due < other.due ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Runs tasks when the trace clock reaches them.
+     */
+    private class TraceScheduler implements DelayScheduler {
+        /** times the tasks; null to time only the ones that render merged updates */
+        private final LatencyRecorder recorder;
+
+        TraceScheduler(LatencyRecorder recorder) {
+            this.recorder = recorder;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            delayed.add(new DelayedTask(now + delayMillis, taskCount++, task, recorder));
+        }
+    }
+
+    /**
+     * @param trace the broadcasts to replay
+     * @param speed multiple of real time to pace the trace at, or 0 for as fast as possible
+     * @param frameMillis like render_frame_ms
+     * @param summaryThreshold like summary_sender_threshold
+     * @param inboxRows messages already in the inbox before the trace starts
+     */
+    public TraceReplay(PduTrace trace, double speed, long frameMillis, int summaryThreshold, int inboxRows, long seed) {
+        this.trace = trace;
+        this.speed = speed;
+
+        PhoneNumberNormalizer normalizer = Benchmarks.newNormalizer();
+        store = new InMemorySmsStore(normalizer);
+        new SyntheticInbox(seed, 2000).fill(store, inboxRows, 0.05);
+
+        NotificationIdManager idManager = new ConcurrentNotificationIdManager(normalizer);
+        rateLimiter = new NotificationRateLimiter(12, 3);
+        textBuilder = new NotificationTextBuilder(ReceivePipeline.MESSAGE_SEPARATOR, 255);
+        mirror = new UnreadMirror(store, PREVIEW_MESSAGES, MIRROR_GRACE_MILLIS);
+
+        Clock traceClock = new Clock() {
+            @Override
+            public long now() {
+                return now;
+            }
+        };
+        PduDecoder decoder = new PduDecoder() {
+            @Override
+            public IncomingSms decode(byte[] pdu, long receivedAt) {
+                GsmPdu.Message part = GsmPdu.decode(pdu);
+                return new IncomingSms(part.address, part.body, receivedAt);
+            }
+        };
+        ContactLookup everyoneIsAContact = new ContactLookup() {
+            @Override
+            public Contact lookup(String phoneNumber) {
+                return new Contact(phoneNumber, phoneNumber, 0, 0, 0);
+            }
+        };
+
+        NotificationScheduler scheduler = new NotificationScheduler(new TextNotifier(), idManager,
+                new TraceScheduler(frameLatency), frameMillis, summaryThreshold);
+        pipeline = new ReceivePipeline(SAME_THREAD, SAME_THREAD, new TraceScheduler(null), traceClock,
+                TIMEOUT_MILLIS, decoder, everyoneIsAContact, mirror, idManager, rateLimiter, normalizer, scheduler);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                System.err.println("Options are name=value, e.g. pattern=group broadcasts=5000 senders=50 "
+                        + "speed=0 frame=100 summary=4 rows=10000 seed=1, or trace=file; save=file writes the trace out");
+                System.exit(1);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+
+        long seed = Long.parseLong(get(options, "seed", "1"));
+        PduTrace trace;
+        if (options.containsKey("trace")) {
+            trace = PduTrace.read(new File(options.get("trace")));
+        }
+        else {
+            trace = PduTrace.synthesize(get(options, "pattern", "group"),
+                    Integer.parseInt(get(options, "broadcasts", "5000")),
+                    Integer.parseInt(get(options, "senders", "50")), seed);
+        }
+        if (options.containsKey("save")) {
+            trace.write(new File(options.get("save")));
+        }
+
+        new TraceReplay(trace, Double.parseDouble(get(options, "speed", "0")),
+                Long.parseLong(get(options, "frame", "100")),
+                Integer.parseInt(get(options, "summary", "4")),
+                Integer.parseInt(get(options, "rows", "10000")), seed).run();
+    }
+
+    public void run() {
+        System.out.println("trace: " + trace.getBroadcasts().size() + " broadcasts, " + trace.getPduCount() + " PDUs");
+
+        long queriesBefore = store.getQueryCount();
+        long allocatedBefore = getAllocatedBytes();
+        long start = System.nanoTime();
+
+        for (PduTrace.Broadcast broadcast : trace.getBroadcasts()) {
+            runDelayed(broadcast.offsetMillis);
+            now = broadcast.offsetMillis;
+            if (now >= nextReconcile) {
+                mirror.reconcile(now);
+                nextReconcile = now + MIRROR_RECONCILE_MILLIS;
+            }
+
+            long arrival;
+            if (speed > 0) {
+                arrival = start + (long) (broadcast.offsetMillis * 1000000L / speed);
+                waitUntil(arrival);
+            }
+            else {
+                arrival = System.nanoTime();
+            }
+
+            long queries = store.getQueryCount();
+            long examined = store.getRowsExamined();
+            receive(broadcast);
+            broadcastLatency.record(System.nanoTime() - arrival,
+                    store.getQueryCount() - queries, store.getRowsExamined() - examined);
+        }
+        runDelayed(Long.MAX_VALUE);
+
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBefore < 0 ? -1 : getAllocatedBytes() - allocatedBefore;
+        long queries = store.getQueryCount() - queriesBefore;
+
+        System.out.println(String.format("throughput: %.0f messages/s, %.0f broadcasts/s over %.2f s",
+                messages * 1e9 / elapsed, trace.getBroadcasts().size() * 1e9 / elapsed, elapsed / 1e9));
+        System.out.println(String.format("messages: %d, renders: %d (%d merged), summaries: %d, held: %d",
+                messages, renders, rateLimiter.getMergedRenderCount(), summaries, rateLimiter.getSuppressedCount()));
+        System.out.println(String.format("provider queries: %.2f per message", (double) queries / messages));
+        if (allocated >= 0) {
+            System.out.println(String.format("allocated: %.0f bytes per message", (double) allocated / messages));
+        }
+        else {
+            System.out.println("allocated: not supported by this JVM");
+        }
+        System.out.println(String.format("average text length: %.1f", renders == 0 ? 0.0 : (double) textLength / renders));
+        System.out.println(LatencyRecorder.header());
+        System.out.println(broadcastLatency);
+        System.out.println(mergedLatency);
+        System.out.println(frameLatency);
+    }
+
+    /**
+     * Hand one broadcast to the pipeline, which runs it up to the scheduler on this thread,
+     * then write its messages to the inbox.
+     */
+    private void receive(PduTrace.Broadcast broadcast) {
+        pipeline.submit(broadcast.pdus, now, new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+
+        PduCoalescer coalescer = new PduCoalescer(ReceivePipeline.MESSAGE_SEPARATOR);
+        for (byte[] pdu : broadcast.pdus) {
+            GsmPdu.Message part = GsmPdu.decode(pdu);
+            coalescer.add(part.address, part.body, pdu);
+        }
+        for (Map.Entry<String, String> message : coalescer.getMessages().entrySet()) {
+            store.deliver(message.getKey(), message.getValue(), now, false);
+            messages++;
+        }
+    }
+
+    /**
+     * Run the delayed tasks that are due by a point in the trace, moving the clock to each.
+     */
+    private void runDelayed(long until) {
+        while (!delayed.isEmpty() && delayed.peek().due <= until) {
+            DelayedTask due = delayed.poll();
+            now = Math.max(now, due.due);
+
+            long merged = rateLimiter.getMergedRenderCount();
+            long queries = store.getQueryCount();
+            long examined = store.getRowsExamined();
+            long start = System.nanoTime();
+            due.task.run();
+            long elapsed = System.nanoTime() - start;
+
+            LatencyRecorder recorder = due.recorder;
+            if (recorder == null && rateLimiter.getMergedRenderCount() != merged) {
+                recorder = mergedLatency;
+            }
+            if (recorder != null) {
+                recorder.record(elapsed, store.getQueryCount() - queries, store.getRowsExamined() - examined);
+            }
+        }
+    }
+
+    /**
+     * Builds the notification text where the device would post it.
+     */
+    private class TextNotifier implements Notifier {
+        @Override
+        public void post(EnrichedSms enriched) {
+            textLength += textBuilder.build(enriched.unread, enriched.sms.body).length();
+            renders++;
+        }
+
+        @Override
+        public void postSummary(List<EnrichedSms> newestFirst) {
+            summaries++;
+        }
+
+        @Override
+        public void cancel(int notificationId) {
+        }
+
+        @Override
+        public void cancelSummary() {
+        }
+    }
+
+    private static void waitUntil(long nanoTime) {
+        long remaining;
+        while ((remaining = nanoTime - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(remaining / 1000000L, (int) (remaining % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return bytes allocated by this thread so far, or -1 if the JVM can't tell
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+                return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static String get(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.messageme.benchmarks;
+
+import com.github.messageme.LongIntMap;
+import com.github.messageme.PhoneNumberNormalizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Aggregating unread rows by sender, as SmsDatabase.getUnreadCounts does
+ * for each observer pass: into a reused LongIntMap, against the boxed
+ * HashMap it replaced.  The cursor is simulated by an array of addresses.
+ */
+@State(Scope.Thread)
+public class UnreadCountsBenchmark {
+    @Param({ "100", "1000", "10000" })
+    public int rows;
+
+    @Param({ "20", "200" })
+    public int senders;
+
+    private PhoneNumberNormalizer normalizer;
+    private String[] addresses;
+    private final LongIntMap counts = new LongIntMap(16);
+
+    @Setup
+    public void setUp() {
+        normalizer = Benchmarks.newNormalizer();
+        Random random = new Random(42);
+        addresses = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            addresses[i] = Benchmarks.phoneNumber(random.nextInt(senders));
+        }
+    }
+
+    @Benchmark
+    public LongIntMap longIntMap() {
+        counts.clear();
+        for (String address : addresses) {
+            counts.add(normalizer.getKey(address), 1);
+        }
+        return counts;
+    }
+
+    @Benchmark
+    public HashMap<Long, int[]> boxedHashMap() {
+        HashMap<Long, int[]> countsByKey = new HashMap<Long, int[]>();
+        for (String address : addresses) {
+            Long key = normalizer.getKey(address);
+            int[] countWrapper = countsByKey.get(key);
+            if (countWrapper == null) {
+                countWrapper = new int[] { 0 };
+                countsByKey.put(key, countWrapper);
+            }
+            countWrapper[0]++;
+        }
+        return countsByKey;
+    }
+}
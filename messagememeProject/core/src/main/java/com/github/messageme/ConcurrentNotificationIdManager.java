@@ -0,0 +1,185 @@
+package com.github.messageme;
+
+import com.github.messageme.interfaces.NotificationIdManager;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of notification IDs in memory without locking, so the
+ * receivers and the observer can use it from any thread.
+ *
+ * New IDs come from freed IDs first, then from an atomic counter.  If two
+ * threads race to create an ID for the same phone number, one wins the
+ * putIfAbsent and the other gives its ID back.
+ *
+ * Phone numbers are keyed on their canonical form, so "+15551234567" and
+ * "(555) 123-4567" share an ID.  The active phone numbers are reported in
+ * the spelling that created the ID.
+ *
+ * Subclasses can persist the mapping by overriding {@link #onIdAssigned}
+ * and {@link #onIdRemoved}.
+ */
+public class ConcurrentNotificationIdManager implements NotificationIdManager {
+    private static final int ID_NOT_FOUND = -1;
+
+    private final PhoneNumberNormalizer normalizer;
+    private final ConcurrentHashMap<Long, Entry> idMap = new ConcurrentHashMap<Long, Entry>();
+    private final ConcurrentLinkedQueue<Integer> freeIds = new ConcurrentLinkedQueue<Integer>();
+    private final AtomicInteger nextId = new AtomicInteger(0);
+
+    private static class Entry {
+        final String phoneNumber;
+        final int id;
+
+        Entry(String phoneNumber, int id) {
+            this.phoneNumber = phoneNumber;
+            this.id = id;
+        }
+    }
+
+    public ConcurrentNotificationIdManager(PhoneNumberNormalizer normalizer) {
+        this.normalizer = normalizer;
+    }
+
+    @Override
+    public int getId(String phoneNumber) {
+        return getId(phoneNumber, true);
+    }
+
+    @Override
+    public int getId(String phoneNumber, boolean createIfNotFound) {
+        Long key = normalizer.getKey(phoneNumber);
+        Entry saved = idMap.get(key);
+        if (saved != null) {
+            return saved.id;
+        }
+
+        if (!createIfNotFound) {
+            return ID_NOT_FOUND;
+        }
+
+        Entry created = new Entry(phoneNumber, allocate());
+        saved = idMap.putIfAbsent(key, created);
+        if (saved != null) {
+            // another thread created it first
+            freeIds.add(created.id);
+            return saved.id;
+        }
+
+        onIdAssigned(phoneNumber, created.id);
+        return created.id;
+    }
+
+    /**
+     * @return a snapshot of the phone numbers, safe to iterate while IDs change
+     */
+    @Override
+    public Set<String> getActiveNotificationPhoneNumbers() {
+        HashSet<String> phoneNumbers = new HashSet<String>();
+        for (Entry entry : idMap.values()) {
+            phoneNumbers.add(entry.phoneNumber);
+        }
+        return Collections.unmodifiableSet(phoneNumbers);
+    }
+
+    @Override
+    public void addNotificationPhoneNumber(String phoneNumber) {
+        // does nothing in this implementation - getting the ID already adds a phone number to the set
+    }
+
+    @Override
+    public void removeNotificationPhoneNumber(String phoneNumber) {
+        Entry removed = idMap.remove(normalizer.getKey(phoneNumber));
+        if (removed == null) {
+            return;
+        }
+
+        freeIds.add(removed.id);
+        onIdRemoved(removed.phoneNumber, removed.id);
+    }
+
+    /**
+     * @return number of phone numbers with IDs
+     */
+    public int size() {
+        return idMap.size();
+    }
+
+    /**
+     * Called after a new ID is assigned.  May run concurrently on several threads.
+     */
+    protected void onIdAssigned(String phoneNumber, int id) {
+    }
+
+    /**
+     * Called after a phone number's ID is removed.  May run concurrently on several threads.
+     */
+    protected void onIdRemoved(String phoneNumber, int id) {
+    }
+
+    /**
+     * Put back an ID loaded from storage.  Must be followed by {@link #finishRestore}
+     * before the manager is used.
+     */
+    protected void restore(String phoneNumber, int id) {
+        idMap.put(normalizer.getKey(phoneNumber), new Entry(phoneNumber, id));
+    }
+
+    /**
+     * Forget a restored ID.
+     */
+    protected void unrestore(String phoneNumber) {
+        idMap.remove(normalizer.getKey(phoneNumber));
+    }
+
+    /**
+     * Rebuild the free list after restoring: every unused ID below the highest
+     * restored ID is free, and the counter continues above it.
+     */
+    protected void finishRestore() {
+        int max = -1;
+        HashSet<Integer> used = new HashSet<Integer>();
+        for (Entry entry : idMap.values()) {
+            used.add(entry.id);
+        }
+        for (Integer id : used) {
+            if (id > max) {
+                max = id;
+            }
+        }
+
+        freeIds.clear();
+        for (int id = 0; id < max; id++) {
+            if (!used.contains(id)) {
+                freeIds.add(id);
+            }
+        }
+        nextId.set(max + 1);
+    }
+
+    /**
+     * Snapshot of phone number to ID, e.g. for compacting storage.
+     */
+    protected Map<String, Integer> snapshotIds() {
+        HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        for (Entry entry : idMap.values()) {
+            ids.put(entry.phoneNumber, entry.id);
+        }
+        return ids;
+    }
+
+    private Integer allocate() {
+        Integer id = freeIds.poll();
+        if (id != null) {
+            return id;
+        }
+        return nextId.getAndIncrement();
+    }
+}
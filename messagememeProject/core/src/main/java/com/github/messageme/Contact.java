@@ -0,0 +1,24 @@
+package com.github.messageme;
+
+/**
+ * A phone number belonging to a contact.
+ */
+public class Contact {
+    public final String phoneNumber;
+    public final String name;
+    public final long contactId;
+
+    /** ID of the contact's photo data row, or 0 if there is no photo */
+    public final long photoId;
+
+    /** Changes whenever the contact is edited (last updated timestamp on API 18+, otherwise 0) */
+    public final long version;
+
+    public Contact(String phoneNumber, String name, long contactId, long photoId, long version) {
+        this.phoneNumber = phoneNumber;
+        this.name = name;
+        this.contactId = contactId;
+        this.photoId = photoId;
+        this.version = version;
+    }
+}
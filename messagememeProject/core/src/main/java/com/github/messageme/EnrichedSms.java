@@ -0,0 +1,34 @@
+package com.github.messageme;
+
+/**
+ * An incoming SMS plus everything needed to render its notification.
+ * Produced by the enrich stage of the receive pipeline.
+ */
+public class EnrichedSms {
+    public final IncomingSms sms;
+    public final String contactName;
+
+    /** contact ID, or 0 if unknown */
+    public final long contactId;
+
+    /** ID of the contact's photo, or 0 if there is none */
+    public final long photoId;
+
+    /** contact version, changes when the contact (and possibly its photo) is edited */
+    public final long contactVersion;
+
+    /** unread messages from the same sender */
+    public final UnreadPreview unread;
+
+    public final int notificationId;
+
+    public EnrichedSms(IncomingSms sms, String contactName, long contactId, long photoId, long contactVersion, UnreadPreview unread, int notificationId) {
+        this.sms = sms;
+        this.contactName = contactName;
+        this.contactId = contactId;
+        this.photoId = photoId;
+        this.contactVersion = contactVersion;
+        this.unread = unread;
+        this.notificationId = notificationId;
+    }
+}
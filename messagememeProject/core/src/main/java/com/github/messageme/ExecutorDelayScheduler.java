@@ -0,0 +1,23 @@
+package com.github.messageme;
+
+import com.github.messageme.interfaces.DelayScheduler;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A DelayScheduler on a ScheduledExecutorService, for when the receive path
+ * runs on the real clock.
+ */
+public class ExecutorDelayScheduler implements DelayScheduler {
+    private final ScheduledExecutorService executor;
+
+    public ExecutorDelayScheduler(ScheduledExecutorService executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,247 @@
+package com.github.messageme;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of notification IDs in an append-only file, so notifications
+ * can still be found and dismissed after our process is killed.
+ *
+ * The IDs themselves are managed lock-free by ConcurrentNotificationIdManager;
+ * this class journals each change.  Changes are buffered and appended in
+ * batches on a background thread.  When the log grows well past the number
+ * of live entries it is compacted by rewriting just the live entries.
+ *
+ * Concurrent creates and removes of the same phone number may be journaled
+ * in a different order than they happened.  At worst that restores a stale
+ * entry, which the observer dismisses on its next pass.
+ */
+public class FileNotificationIdManager extends ConcurrentNotificationIdManager {
+    private static final Logger LOG = Logger.getLogger("FileNotificationIdManager");
+    /** Name of the log file in the app's files directory */
+    public static final String FILE_NAME = "notification_ids.log";
+
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    /** How long changes are buffered before being appended */
+    private static final long FLUSH_DELAY_MS = 250;
+
+    /** Compact once the log has this many more records than live entries */
+    private static final int COMPACT_SLACK = 64;
+
+    private final File file;
+
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+
+    /** guards the pending buffer and the fields below */
+    private final Object journalLock = new Object();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    private boolean flushScheduled = false;
+
+    /** records in the file plus pending records */
+    private int recordCount = 0;
+
+    /** set if the log ends in a partial record, so the next write must rewrite it rather than append */
+    private boolean truncated = false;
+
+    public FileNotificationIdManager(File file, PhoneNumberNormalizer normalizer) {
+        super(normalizer);
+        this.file = file;
+        load();
+    }
+
+    @Override
+    protected void onIdAssigned(String phoneNumber, int id) {
+        append(RECORD_ADD, phoneNumber, id);
+    }
+
+    @Override
+    protected void onIdRemoved(String phoneNumber, int id) {
+        append(RECORD_REMOVE, phoneNumber, id);
+    }
+
+    /**
+     * Write any buffered changes now.
+     */
+    public void flush() {
+        try {
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    writePending();
+                }
+            }).get();
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Failed to flush", e);
+        }
+    }
+
+    private void append(byte type, String phoneNumber, int id) {
+        synchronized (journalLock) {
+            try {
+                pendingOut.writeByte(type);
+                pendingOut.writeInt(id);
+                pendingOut.writeUTF(phoneNumber);
+            } catch (IOException e) {
+                // can't happen writing to memory
+                throw new IllegalStateException(e);
+            }
+            recordCount++;
+
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+
+        writer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                writePending();
+            }
+        }, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Append the buffered records, or compact if the log has grown too far.  Runs on the writer thread.
+     */
+    private void writePending() {
+        byte[] records;
+        boolean compact;
+        synchronized (journalLock) {
+            flushScheduled = false;
+            compact = truncated || recordCount > size() + COMPACT_SLACK;
+            truncated = false;
+            if (compact) {
+                // taken under the lock so no change is both in the snapshot and still pending
+                Map<String, Integer> ids = snapshotIds();
+                records = encode(ids);
+                recordCount = ids.size();
+            }
+            else {
+                records = pending.toByteArray();
+            }
+            pending.reset();
+        }
+
+        if (records.length == 0 && !compact) {
+            return;
+        }
+
+        try {
+            if (compact) {
+                File temp = new File(file.getPath() + ".tmp");
+                write(temp, records, false);
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Failed to rename " + temp);
+                }
+                LOG.fine("compacted to " + records.length + " bytes");
+            }
+            else {
+                write(file, records, true);
+            }
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Failed to write " + file, e);
+        }
+    }
+
+    /**
+     * @return an ADD record for each entry
+     */
+    private static byte[] encode(Map<String, Integer> ids) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+                out.writeByte(RECORD_ADD);
+                out.writeInt(entry.getValue());
+                out.writeUTF(entry.getKey());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void write(File target, byte[] records, boolean append) throws IOException {
+        FileOutputStream out = new FileOutputStream(target, append);
+        try {
+            out.write(records);
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Replay the log.  A record cut short by a crash ends the replay, and the
+     * log is rewritten on the next change.
+     */
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+
+        byte[] data;
+        try {
+            data = new byte[(int) file.length()];
+            FileInputStream in = new FileInputStream(file);
+            try {
+                int offset = 0;
+                int read;
+                while (offset < data.length && (read = in.read(data, offset, data.length - offset)) != -1) {
+                    offset += read;
+                }
+            }
+            finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Failed to read " + file, e);
+            return;
+        }
+
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        DataInputStream in = new DataInputStream(bytes);
+        try {
+            while (bytes.available() > 0) {
+                byte type = in.readByte();
+                int id = in.readInt();
+                String phoneNumber = in.readUTF();
+                recordCount++;
+
+                if (type == RECORD_ADD) {
+                    restore(phoneNumber, id);
+                }
+                else if (type == RECORD_REMOVE) {
+                    unrestore(phoneNumber);
+                }
+            }
+        } catch (EOFException e) {
+            LOG.warning("Partial record at the end of " + file);
+            truncated = true;
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Corrupt record in " + file, e);
+            truncated = true;
+        }
+
+        finishRestore();
+        LOG.fine("loaded " + size() + " IDs from " + recordCount + " records");
+    }
+}
@@ -0,0 +1,358 @@
+package com.github.messageme;
+
+import com.github.messageme.interfaces.SmsStore;
+import com.github.messageme.interfaces.ThreadIdResolver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SmsStore over an in-memory inbox, standing in for the SMS provider so the
+ * code above it can be tested and load tested on the JVM.
+ *
+ * Rows are kept in ID order, like the provider's table, with an index by
+ * sender that plays the part of the thread_id index.  It also resolves
+ * threads, so a ThreadIdCache can run over it.  Each method answers
+ * with the same queries SmsDatabase would make and counts them, along with
+ * the rows each query has to look at, so a run shows how the provider's
+ * work grows with the inbox.
+ *
+ * Thread safe; every query holds the store's lock, like a provider call
+ * holds a database connection.
+ */
+public class InMemorySmsStore implements SmsStore, ThreadIdResolver {
+    /** An inbox row */
+    static class Message {
+        final long id;
+        final String address;
+        final long key;
+        final String body;
+        final long date;
+        boolean read;
+
+        Message(long id, String address, long key, String body, long date, boolean read) {
+            this.id = id;
+            this.address = address;
+            this.key = key;
+            this.body = body;
+            this.date = date;
+            this.read = read;
+        }
+    }
+
+    private final PhoneNumberNormalizer normalizer;
+
+    /** the inbox in ID order; guarded by this */
+    private final ArrayList<Message> inbox = new ArrayList<Message>();
+
+    /** canonical key of each sender to their rows in ID order; guarded by this */
+    private final HashMap<Long, ArrayList<Message>> bySender = new HashMap<Long, ArrayList<Message>>();
+
+    /** canonical key of each address to its thread ID; guarded by this */
+    private final HashMap<Long, Long> threads = new HashMap<Long, Long>();
+
+    /** guarded by this */
+    private long nextId = 1;
+
+    /** guarded by this */
+    private long nextThreadId = 1;
+
+    private final AtomicLong queryCount = new AtomicLong();
+    private final AtomicLong rowsExamined = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+
+    public InMemorySmsStore(PhoneNumberNormalizer normalizer) {
+        this.normalizer = normalizer;
+    }
+
+    /**
+     * Add a message to the inbox, as the system does when one is received.
+     * @return the new message's ID
+     */
+    public synchronized long deliver(String address, String body, long date, boolean read) {
+        long key = normalizer.getKey(address);
+        Message message = new Message(nextId++, address, key, body, date, read);
+        inbox.add(message);
+
+        ArrayList<Message> rows = bySender.get(key);
+        if (rows == null) {
+            rows = new ArrayList<Message>();
+            bySender.put(key, rows);
+        }
+        rows.add(message);
+        getOrCreateThread(key);
+        return message.id;
+    }
+
+    /**
+     * @return the rows in the inbox
+     */
+    public synchronized int size() {
+        return inbox.size();
+    }
+
+    /**
+     * @return conversation threads, including ones created without a message
+     */
+    public synchronized int getThreadCount() {
+        return threads.size();
+    }
+
+    /**
+     * @return queries answered so far
+     */
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+
+    /**
+     * @return rows looked at by all queries so far
+     */
+    public long getRowsExamined() {
+        return rowsExamined.get();
+    }
+
+    /**
+     * @return inserts and updates applied so far
+     */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    @Override
+    public PhoneNumberNormalizer getNormalizer() {
+        return normalizer;
+    }
+
+    @Override
+    public synchronized void markRead(String phoneNumber) {
+        writeCount.incrementAndGet();
+        List<Message> rows = getRows(phoneNumber);
+        rowsExamined.addAndGet(rows.size());
+        for (Message message : rows) {
+            message.read = true;
+        }
+    }
+
+    @Override
+    public void markAllRead(Iterable<String> phoneNumbers) {
+        for (String phoneNumber : phoneNumbers) {
+            markRead(phoneNumber);
+        }
+    }
+
+    @Override
+    public void flushWrites() {
+        // writes are applied right away
+    }
+
+    @Override
+    public synchronized List<String> getUnread(String phoneNumber) {
+        queryCount.incrementAndGet();
+        List<Message> rows = getRows(phoneNumber);
+        rowsExamined.addAndGet(rows.size());
+
+        ArrayList<String> messages = new ArrayList<String>();
+        for (Message message : rows) {
+            if (!message.read) {
+                messages.add(message.body);
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public synchronized UnreadPreview getUnreadPreview(String phoneNumber, int maxMessages) {
+        // a count query, then a query for the newest bodies
+        queryCount.incrementAndGet();
+        List<Message> rows = getRows(phoneNumber);
+        rowsExamined.addAndGet(rows.size());
+
+        int count = 0;
+        for (Message message : rows) {
+            if (!message.read) {
+                count++;
+            }
+        }
+
+        ArrayList<String> messages = new ArrayList<String>(Math.min(count, maxMessages));
+        if (count == 0 || maxMessages == 0) {
+            return new UnreadPreview(count, messages);
+        }
+
+        queryCount.incrementAndGet();
+        for (int i = rows.size() - 1; i >= 0 && messages.size() < maxMessages; i--) {
+            rowsExamined.incrementAndGet();
+            Message message = rows.get(i);
+            if (!message.read) {
+                messages.add(message.body);
+            }
+        }
+        return new UnreadPreview(count, messages);
+    }
+
+    @Override
+    public void writeSentMessage(String phoneNumber, String messageBody) {
+        // sent messages don't go in the inbox, so only the write is recorded
+        writeCount.incrementAndGet();
+    }
+
+    @Override
+    public synchronized void getUnreadCounts(LongIntMap unreadCounts) {
+        unreadCounts.clear();
+        queryCount.incrementAndGet();
+        rowsExamined.addAndGet(inbox.size());
+
+        for (Message message : inbox) {
+            if (!message.read) {
+                // the provider hands back addresses, so normalize like SmsDatabase does
+                long key = normalizer.getKey(message.address);
+                if (key != PhoneNumberNormalizer.NO_KEY) {
+                    unreadCounts.add(key, 1);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void getUnreadIds(String phoneNumber, Collection<Long> ids) {
+        queryCount.incrementAndGet();
+        List<Message> rows = getRows(phoneNumber);
+        rowsExamined.addAndGet(rows.size());
+
+        for (Message message : rows) {
+            if (!message.read) {
+                ids.add(message.id);
+            }
+        }
+    }
+
+    @Override
+    public synchronized long getMaxInboxId() {
+        queryCount.incrementAndGet();
+        rowsExamined.incrementAndGet();
+        return inbox.isEmpty() ? 0 : inbox.get(inbox.size() - 1).id;
+    }
+
+    @Override
+    public synchronized long getUnreadSince(long afterId, Map<Long, ? extends Collection<Long>> unreadIds) {
+        queryCount.incrementAndGet();
+
+        long maxId = afterId;
+        for (int i = firstAfter(afterId); i < inbox.size(); i++) {
+            rowsExamined.incrementAndGet();
+            Message message = inbox.get(i);
+            maxId = message.id;
+            if (!message.read) {
+                Collection<Long> ids = unreadIds.get(normalizer.getKey(message.address));
+                if (ids != null) {
+                    ids.add(message.id);
+                }
+            }
+        }
+        return maxId;
+    }
+
+    @Override
+    public synchronized void getUnreadAmong(Collection<Long> ids, Map<Long, ? extends Collection<Long>> unreadIds) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        queryCount.incrementAndGet();
+
+        for (Long id : ids) {
+            Message message = find(id);
+            if (message != null && !message.read) {
+                Collection<Long> unread = unreadIds.get(normalizer.getKey(message.address));
+                if (unread != null) {
+                    unread.add(id);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void retainUnread(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        queryCount.incrementAndGet();
+
+        ArrayList<Long> stale = new ArrayList<Long>();
+        for (Long id : ids) {
+            Message message = find(id);
+            if (message == null || message.read) {
+                stale.add(id);
+            }
+        }
+        ids.removeAll(stale);
+    }
+
+    @Override
+    public synchronized long findThreadId(String phoneNumber) {
+        // the provider matches the address against every row; there's no index on it
+        queryCount.incrementAndGet();
+        rowsExamined.addAndGet(inbox.size());
+        Long threadId = threads.get(normalizer.getKey(phoneNumber));
+        return threadId != null ? threadId : ThreadIdCache.NO_THREAD;
+    }
+
+    @Override
+    public synchronized long getOrCreateThreadId(String phoneNumber) {
+        long key = normalizer.getKey(phoneNumber);
+        if (key == PhoneNumberNormalizer.NO_KEY) {
+            return ThreadIdCache.NO_THREAD;
+        }
+        queryCount.incrementAndGet();
+        rowsExamined.incrementAndGet();
+        return getOrCreateThread(key);
+    }
+
+    private long getOrCreateThread(long key) {
+        Long threadId = threads.get(key);
+        if (threadId == null) {
+            threadId = nextThreadId++;
+            threads.put(key, threadId);
+        }
+        return threadId;
+    }
+
+    private List<Message> getRows(String phoneNumber) {
+        List<Message> rows = bySender.get(normalizer.getKey(phoneNumber));
+        return rows != null ? rows : new ArrayList<Message>(0);
+    }
+
+    /**
+     * Look up a row by ID, like the provider's primary key lookup.
+     */
+    private Message find(long id) {
+        rowsExamined.incrementAndGet();
+        int i = firstAfter(id - 1);
+        if (i < inbox.size() && inbox.get(i).id == id) {
+            return inbox.get(i);
+        }
+        return null;
+    }
+
+    /**
+     * @return index of the first row with an ID above afterId
+     */
+    private int firstAfter(long afterId) {
+        int low = 0;
+        int high = inbox.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (inbox.get(mid).id <= afterId) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
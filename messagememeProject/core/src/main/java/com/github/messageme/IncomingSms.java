@@ -0,0 +1,36 @@
+package com.github.messageme;
+
+/**
+ * A decoded incoming SMS, as passed between the stages of the receive pipeline.
+ */
+public class IncomingSms {
+    /** sender's phone number (not normalized) */
+    public final String phoneNumber;
+
+    /** message text */
+    public final String body;
+
+    /** SystemClock.elapsedRealtime() when the broadcast arrived, used to measure latency */
+    public final long receivedAt;
+
+    /** number of received messages this stands for, more than 1 if rate limited updates were merged into it */
+    public final int messageCount;
+
+    public IncomingSms(String phoneNumber, String body, long receivedAt) {
+        this(phoneNumber, body, receivedAt, 1);
+    }
+
+    private IncomingSms(String phoneNumber, String body, long receivedAt, int messageCount) {
+        this.phoneNumber = phoneNumber;
+        this.body = body;
+        this.receivedAt = receivedAt;
+        this.messageCount = messageCount;
+    }
+
+    /**
+     * @return this message, standing for messageCount received messages
+     */
+    public IncomingSms withMessageCount(int messageCount) {
+        return new IncomingSms(phoneNumber, body, receivedAt, messageCount);
+    }
+}
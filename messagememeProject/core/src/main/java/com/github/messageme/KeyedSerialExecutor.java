@@ -0,0 +1,68 @@
+package com.github.messageme;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks that share a key one at a time, in the order they were submitted.
+ * Tasks with different keys are handed to the delegate executor independently
+ * and may run in parallel.
+ *
+ * @param <K> key type, e.g. the sender's phone number
+ */
+public class KeyedSerialExecutor<K> {
+    private final Executor delegate;
+
+    /**
+     * Tasks waiting behind the currently running task for each key.
+     * A key is present only while a task for it is running.
+     */
+    private final HashMap<K, ArrayDeque<Runnable>> pending = new HashMap<K, ArrayDeque<Runnable>>();
+
+    public KeyedSerialExecutor(Executor delegate) {
+        this.delegate = delegate;
+    }
+
+    public void execute(K key, Runnable task) {
+        synchronized (pending) {
+            ArrayDeque<Runnable> queue = pending.get(key);
+            if (queue != null) {
+                // something is already running for this key, run after it
+                queue.add(task);
+                return;
+            }
+            pending.put(key, new ArrayDeque<Runnable>());
+        }
+
+        delegate.execute(wrap(key, task));
+    }
+
+    private Runnable wrap(final K key, final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                }
+                finally {
+                    scheduleNext(key);
+                }
+            }
+        };
+    }
+
+    private void scheduleNext(K key) {
+        Runnable next;
+        synchronized (pending) {
+            ArrayDeque<Runnable> queue = pending.get(key);
+            next = queue.poll();
+            if (next == null) {
+                pending.remove(key);
+                return;
+            }
+        }
+
+        delegate.execute(wrap(key, next));
+    }
+}
@@ -0,0 +1,177 @@
+package com.github.messageme;
+
+import java.util.Arrays;
+
+/**
+ * Map from long keys to int values, using open addressing with linear
+ * probing over two primitive arrays.  Used to count unread messages by
+ * canonical phone number key without boxing or a wrapper per entry.
+ *
+ * Key 0 is reserved to mark empty slots; it's PhoneNumberNormalizer.NO_KEY,
+ * so it never names a sender.  There's no remove: the map is meant to be
+ * filled, read and cleared, then reused so the arrays are only allocated
+ * when it grows.
+ *
+ * Entries can be walked by slot: for each slot below {@link #capacity},
+ * {@link #keyAt} is a key if it isn't 0.
+ *
+ * Not thread safe.
+ */
+public class LongIntMap {
+    private static final long EMPTY = 0;
+    private static final int MIN_CAPACITY = 8;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    /**
+     * @param expectedSize entries the map should hold before it has to grow
+     */
+    public LongIntMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * @return the value for the key, or defaultValue if there is none
+     */
+    public int get(long key, int defaultValue) {
+        if (key == EMPTY) {
+            return defaultValue;
+        }
+        int slot = find(key);
+        return keys[slot] == key ? values[slot] : defaultValue;
+    }
+
+    public boolean containsKey(long key) {
+        return key != EMPTY && keys[find(key)] == key;
+    }
+
+    /**
+     * Set the value for a key.
+     * @throws IllegalArgumentException if the key is 0
+     */
+    public void put(long key, int value) {
+        int slot = insert(key);
+        values[slot] = value;
+    }
+
+    /**
+     * Add to the value for a key, starting from 0 if it isn't in the map.
+     * @return the new value
+     * @throws IllegalArgumentException if the key is 0
+     */
+    public int add(long key, int delta) {
+        int slot = insert(key);
+        values[slot] += delta;
+        return values[slot];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove all entries, keeping the arrays for reuse.
+     */
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+        }
+    }
+
+    /**
+     * @return number of slots, for walking the entries
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return the key in a slot, or 0 if the slot is empty
+     */
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * @return the value in a slot; only meaningful if the slot has a key
+     */
+    public int valueAt(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * @return the slot holding the key, or the empty slot where it would go
+     */
+    private int find(long key) {
+        int slot = hash(key) & mask;
+        while (keys[slot] != key && keys[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return the slot holding the key, adding it with value 0 if necessary
+     */
+    private int insert(long key) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Key 0 is reserved");
+        }
+
+        int slot = find(key);
+        if (keys[slot] == key) {
+            return slot;
+        }
+
+        // keep the load factor at or below 1/2 so probe sequences stay short
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+            slot = find(key);
+        }
+
+        keys[slot] = key;
+        values[slot] = 0;
+        size++;
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(keys.length * 2);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Spread the key bits so keys that differ only in high bits (e.g. the digit count) don't cluster.
+     */
+    private static int hash(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,130 @@
+package com.github.messageme;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide latency histograms for the stages of receiving and sending
+ * messages, and counters for cache and provider traffic.
+ *
+ * Timers use System.nanoTime(), so they're monotonic.  Usage:
+ *
+ *   long start = Metrics.start();
+ *   ...
+ *   Metrics.end(Metrics.STAGE_DECODE, start);
+ *
+ * Everything is lock-free, so instrumenting a hot path costs a clock read
+ * and a few atomic increments.
+ */
+public class Metrics {
+    /** SMS_RECEIVED PDUs decoded and coalesced */
+    public static final int STAGE_DECODE = 0;
+    /** ContactIndex lookup of a sender */
+    public static final int STAGE_CONTACT_LOOKUP = 1;
+    /** unread messages looked up for a notification */
+    public static final int STAGE_GET_UNREAD = 2;
+    /** contact photo read and decoded from the provider */
+    public static final int STAGE_PHOTO_DECODE = 3;
+    /** NotificationManager.notify() */
+    public static final int STAGE_NOTIFY = 4;
+    /** quick response handled, up to the reply being queued */
+    public static final int STAGE_SEND = 5;
+    /** SMS observer reconciliation pass */
+    public static final int STAGE_OBSERVER_CHANGE = 6;
+
+    private static final String[] STAGE_NAMES = {
+            "decode", "contact lookup", "getUnread", "photo decode", "notify", "handleSendIntent", "observer onChange"
+    };
+
+    public static final int CONTACT_HIT = 0;
+    public static final int CONTACT_MISS = 1;
+    public static final int PHOTO_MEMORY_HIT = 2;
+    public static final int PHOTO_DISK_HIT = 3;
+    public static final int PHOTO_DECODED = 4;
+    public static final int THREAD_ID_HIT = 5;
+    public static final int THREAD_ID_MISS = 6;
+    public static final int PROVIDER_QUERIES = 7;
+    public static final int OBSERVER_EVENTS = 8;
+    public static final int DISMISSALS = 9;
+    public static final int UNREAD_MIRROR_HIT = 10;
+    public static final int UNREAD_MIRROR_LOAD = 11;
+    public static final int UNREAD_MIRROR_STALE = 12;
+
+    private static final String[] COUNTER_NAMES = {
+            "contact hits", "contact misses", "photo memory hits", "photo disk hits", "photos decoded",
+            "thread ID hits", "thread ID misses", "provider queries", "observer events", "dismissals",
+            "mirror hits", "mirror loads", "mirror corrections"
+    };
+
+    private static final LatencyHistogram[] stages = new LatencyHistogram[STAGE_NAMES.length];
+    private static final AtomicLongArray counters = new AtomicLongArray(COUNTER_NAMES.length);
+
+    static {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * @return the start time to pass to {@link #end}
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record one run of a stage.
+     * @param stage one of the STAGE_ constants
+     * @param start the value {@link #start} returned
+     */
+    public static void end(int stage, long start) {
+        stages[stage].record(System.nanoTime() - start);
+    }
+
+    /**
+     * @param counter one of the counter constants
+     */
+    public static void count(int counter) {
+        counters.incrementAndGet(counter);
+    }
+
+    public static LatencyHistogram getStage(int stage) {
+        return stages[stage];
+    }
+
+    public static long getCount(int counter) {
+        return counters.get(counter);
+    }
+
+    public static void reset() {
+        for (LatencyHistogram stage : stages) {
+            stage.reset();
+        }
+        for (int i = 0; i < COUNTER_NAMES.length; i++) {
+            counters.set(i, 0);
+        }
+    }
+
+    /**
+     * Write the stages as a table of percentiles, then the counters.
+     */
+    public static void dump(PrintWriter writer) {
+        writer.println(String.format("%-18s %8s %8s %8s %8s %8s %8s",
+                "stage", "count", "mean us", "p50 us", "p90 us", "p99 us", "max us"));
+        for (int i = 0; i < stages.length; i++) {
+            LatencyHistogram stage = stages[i];
+            writer.println(String.format("%-18s %8d %8d %8d %8d %8d %8d",
+                    STAGE_NAMES[i], stage.getCount(), stage.getMeanMicros(),
+                    stage.getPercentileMicros(0.50), stage.getPercentileMicros(0.90),
+                    stage.getPercentileMicros(0.99), stage.getMaxMicros()));
+        }
+
+        writer.println();
+        for (int i = 0; i < COUNTER_NAMES.length; i++) {
+            writer.println(String.format("%-18s %8d", COUNTER_NAMES[i], counters.get(i)));
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.github.messageme;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-sender token bucket in front of the notification render, so a
+ * flooding sender doesn't cost a lookup, a render and a notify() per message
+ * (and doesn't get the app throttled by the NotificationManager).
+ *
+ * Each sender may render a burst of updates, then one update per refill
+ * interval.  An update that arrives without a token is held as the sender's
+ * pending update; later ones replace it and are counted, so when the token
+ * arrives one render shows them all.
+ *
+ * Times are SystemClock.elapsedRealtime() values passed in by the caller.
+ */
+public class NotificationRateLimiter {
+    /** Returned by acquire when an update is merged into one that's already waiting */
+    public static final long ALREADY_PENDING = -1;
+
+    /** Above this many buckets, idle ones are dropped */
+    private static final int MAX_BUCKETS = 256;
+
+    private final double tokensPerMilli;
+    private final int burst;
+
+    /** canonical phone number key to bucket; guarded by this */
+    private final HashMap<Long, Bucket> buckets = new HashMap<Long, Bucket>();
+
+    private final AtomicLong allowedCount = new AtomicLong();
+    private final AtomicLong suppressedCount = new AtomicLong();
+    private final AtomicLong mergedRenderCount = new AtomicLong();
+
+    private static class Bucket {
+        double tokens;
+        long lastRefill;
+
+        /** newest held update, or null */
+        IncomingSms pending;
+
+        /** updates held since the last render */
+        int pendingCount;
+
+        Bucket(int tokens, long now) {
+            this.tokens = tokens;
+            this.lastRefill = now;
+        }
+    }
+
+    /**
+     * @param perMinute renders per sender per minute once the burst is used up
+     * @param burst renders a sender may have back to back
+     * @throws IllegalArgumentException if either is less than 1, since held updates would never render
+     */
+    public NotificationRateLimiter(int perMinute, int burst) {
+        if (perMinute < 1 || burst < 1) {
+            throw new IllegalArgumentException("Rate limit needs at least 1 render per minute and a burst of 1, got "
+                    + perMinute + "/min, burst " + burst);
+        }
+        this.tokensPerMilli = perMinute / 60000.0;
+        this.burst = burst;
+    }
+
+    /**
+     * Ask to render an update for a sender.
+     * @param key canonical key of the sender
+     * @param sms the update
+     * @param now current SystemClock.elapsedRealtime()
+     * @return 0 if it may render now; otherwise the update is held and this is either
+     *         the delay in ms before {@link #takePending} should be called, or ALREADY_PENDING
+     *         if a call is already due
+     */
+    public synchronized long acquire(long key, IncomingSms sms, long now) {
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= MAX_BUCKETS) {
+                prune(now);
+            }
+            bucket = new Bucket(burst, now);
+            buckets.put(key, bucket);
+        }
+        refill(bucket, now);
+
+        if (bucket.pending != null) {
+            bucket.pending = sms;
+            bucket.pendingCount++;
+            suppressedCount.incrementAndGet();
+            return ALREADY_PENDING;
+        }
+
+        if (bucket.tokens >= 1) {
+            bucket.tokens--;
+            allowedCount.incrementAndGet();
+            return 0;
+        }
+
+        bucket.pending = sms;
+        bucket.pendingCount = 1;
+        suppressedCount.incrementAndGet();
+        return Math.max(1, (long) Math.ceil((1 - bucket.tokens) / tokensPerMilli));
+    }
+
+    /**
+     * Take a sender's held update to render it, using up the token that has arrived for it.
+     * @return the newest held update, with its count of merged messages, or null if there is none
+     */
+    public synchronized IncomingSms takePending(long key, long now) {
+        Bucket bucket = buckets.get(key);
+        if (bucket == null || bucket.pending == null) {
+            return null;
+        }
+        refill(bucket, now);
+
+        IncomingSms sms = bucket.pending;
+        int count = bucket.pendingCount;
+        bucket.pending = null;
+        bucket.pendingCount = 0;
+        bucket.tokens = Math.max(0, bucket.tokens - 1);
+        mergedRenderCount.incrementAndGet();
+
+        return count == 1 ? sms : sms.withMessageCount(count);
+    }
+
+    /**
+     * @return updates allowed to render right away
+     */
+    public long getAllowedCount() {
+        return allowedCount.get();
+    }
+
+    /**
+     * @return updates held back instead of rendering
+     */
+    public long getSuppressedCount() {
+        return suppressedCount.get();
+    }
+
+    /**
+     * @return delayed renders, each standing in for one or more held updates
+     */
+    public long getMergedRenderCount() {
+        return mergedRenderCount.get();
+    }
+
+    private void refill(Bucket bucket, long now) {
+        long elapsed = now - bucket.lastRefill;
+        if (elapsed > 0) {
+            bucket.tokens = Math.min(burst, bucket.tokens + elapsed * tokensPerMilli);
+            bucket.lastRefill = now;
+        }
+    }
+
+    /**
+     * Forget senders that are back to a full bucket with nothing held; they'd be recreated the same.
+     */
+    private void prune(long now) {
+        Iterator<Bucket> iterator = buckets.values().iterator();
+        while (iterator.hasNext()) {
+            Bucket bucket = iterator.next();
+            refill(bucket, now);
+            if (bucket.pending == null && bucket.tokens >= burst) {
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.github.messageme;
+
+import com.github.messageme.interfaces.DelayScheduler;
+import com.github.messageme.interfaces.NotificationIdManager;
+import com.github.messageme.interfaces.Notifier;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects notification updates and posts them in frames, so a busy period
+ * costs one pass of NotificationManager calls per frame rather than one per
+ * message.
+ *
+ * The first update after a quiet period opens a frame; every update that
+ * arrives before the frame ends is posted with it, and only the newest
+ * update per contact is rendered.  If more contacts have notifications than
+ * the summary threshold, their notifications are replaced by a single
+ * summary until enough of them are dismissed; the summary carries the quick
+ * responses for the contact updated most recently.  When it's split back
+ * into individual notifications, each contact is enriched again, since
+ * their unread messages and contact details may have changed meanwhile.
+ *
+ * Notification IDs are freed when a notification is dismissed and may be
+ * given to another contact, so an update is only posted while its ID still
+ * belongs to its sender.
+ *
+ * Frames run on the DelayScheduler's thread, which is background priority
+ * on the device.
+ */
+public class NotificationScheduler {
+    private static final Logger LOG = Logger.getLogger("NotificationScheduler");
+
+    private final Notifier notifier;
+    private final NotificationIdManager idManager;
+    private final DelayScheduler frames;
+    private final long frameMillis;
+    private final int summaryThreshold;
+
+    /** updates waiting for the next frame, by notification ID; guarded by this */
+    private LinkedHashMap<Integer, EnrichedSms> pending = new LinkedHashMap<Integer, EnrichedSms>();
+    private boolean frameScheduled = false;
+
+    /** enriches contacts again when the summary is split up; guarded by this */
+    private ReceivePipeline pipeline;
+
+    /** newest update for each contact with a notification, by notification ID; frame thread only */
+    private final LinkedHashMap<Integer, EnrichedSms> active = new LinkedHashMap<Integer, EnrichedSms>();
+    private boolean summaryShown = false;
+
+    private final Runnable frame = new Runnable() {
+        @Override
+        public void run() {
+            runFrame();
+        }
+    };
+
+    /**
+     * @param notifier renders and posts the notifications
+     * @param idManager tells which notifications are still active
+     * @param frames runs the frames
+     * @param frameMillis how long a frame collects updates before posting them
+     * @param summaryThreshold most contacts shown individually before switching to a summary
+     */
+    public NotificationScheduler(Notifier notifier, NotificationIdManager idManager, DelayScheduler frames,
+                                 long frameMillis, int summaryThreshold) {
+        this.notifier = notifier;
+        this.idManager = idManager;
+        this.frames = frames;
+        this.frameMillis = frameMillis;
+        this.summaryThreshold = summaryThreshold;
+    }
+
+    /**
+     * Queue an update for the next frame, replacing any queued update for the same contact.
+     * @param source the pipeline that enriched the update
+     */
+    public void submit(ReceivePipeline source, EnrichedSms enriched) {
+        synchronized (this) {
+            pipeline = source;
+            pending.remove(enriched.notificationId);
+            pending.put(enriched.notificationId, enriched);
+            if (frameScheduled) {
+                return;
+            }
+            frameScheduled = true;
+        }
+
+        frames.schedule(frame, frameMillis);
+    }
+
+    /**
+     * Re-check the active notifications, e.g. after some were dismissed, so the
+     * summary is updated or split back into individual notifications.
+     */
+    public void refresh() {
+        synchronized (this) {
+            // nothing has been submitted, so there's nothing to re-check
+            if (frameScheduled || pipeline == null) {
+                return;
+            }
+            frameScheduled = true;
+        }
+
+        frames.schedule(frame, frameMillis);
+    }
+
+    private void runFrame() {
+        LinkedHashMap<Integer, EnrichedSms> updates;
+        ReceivePipeline source;
+        synchronized (this) {
+            updates = pending;
+            pending = new LinkedHashMap<Integer, EnrichedSms>();
+            frameScheduled = false;
+            source = pipeline;
+        }
+
+        if (source == null) {
+            return;
+        }
+
+        try {
+            for (EnrichedSms enriched : updates.values()) {
+                active.remove(enriched.notificationId);
+                active.put(enriched.notificationId, enriched);
+            }
+            pruneDismissed();
+
+            if (active.size() > summaryThreshold) {
+                postSummary();
+                return;
+            }
+
+            if (summaryShown) {
+                // back under the threshold: everyone still active gets their own notification again
+                notifier.cancelSummary();
+                summaryShown = false;
+                updates = reenrichActive(source);
+            }
+
+            LOG.finer("posting " + updates.size() + " notifications");
+            for (EnrichedSms enriched : updates.values()) {
+                if (!ownsId(enriched)) {
+                    // dismissed while queued, and the ID may belong to someone else now
+                    continue;
+                }
+
+                try {
+                    notifier.post(enriched);
+                } catch (Exception e) {
+                    LOG.log(Level.SEVERE, "Error in showing notification", e);
+                }
+            }
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Error in rendering frame", e);
+        }
+    }
+
+    /**
+     * Forget contacts whose notifications have been dismissed.
+     */
+    private void pruneDismissed() {
+        Iterator<EnrichedSms> iterator = active.values().iterator();
+        while (iterator.hasNext()) {
+            if (!ownsId(iterator.next())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return true if the update's notification ID still belongs to its sender
+     */
+    private boolean ownsId(EnrichedSms enriched) {
+        return idManager.getId(enriched.sms.phoneNumber, false) == enriched.notificationId;
+    }
+
+    /**
+     * Enrich every active contact again, as the summary stood in for their notifications
+     * while their unread messages or contact details changed.
+     * @return the fresh updates, which replace the active ones
+     */
+    private LinkedHashMap<Integer, EnrichedSms> reenrichActive(ReceivePipeline source) {
+        LinkedHashMap<Integer, EnrichedSms> fresh = new LinkedHashMap<Integer, EnrichedSms>();
+        for (EnrichedSms enriched : active.values()) {
+            EnrichedSms reenriched = null;
+            try {
+                reenriched = source.reenrich(enriched);
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "Error in enriching " + enriched.sms.phoneNumber + " again", e);
+            }
+
+            if (reenriched != null) {
+                fresh.put(reenriched.notificationId, reenriched);
+            }
+        }
+
+        active.clear();
+        active.putAll(fresh);
+        return fresh;
+    }
+
+    private void postSummary() {
+        if (!summaryShown) {
+            for (Integer notificationId : active.keySet()) {
+                notifier.cancel(notificationId);
+            }
+            summaryShown = true;
+        }
+
+        ArrayList<EnrichedSms> newestFirst = new ArrayList<EnrichedSms>(active.size());
+        ArrayList<EnrichedSms> contacts = new ArrayList<EnrichedSms>(active.values());
+        for (int i = contacts.size() - 1; i >= 0; i--) {
+            newestFirst.add(contacts.get(i));
+        }
+
+        LOG.finer("posting summary for " + active.size() + " contacts");
+        notifier.postSummary(newestFirst);
+    }
+}
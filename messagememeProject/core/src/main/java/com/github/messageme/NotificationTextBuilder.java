@@ -0,0 +1,135 @@
+package com.github.messageme;
+
+import java.util.List;
+
+/**
+ * Builds the one line of notification text for a sender's messages.
+ *
+ * The text is filled in from the end: the message that just arrived, then
+ * the unread messages from newest to oldest, until the length limit is
+ * reached.  So when there's too much to show, the oldest text is what gets
+ * dropped, and nothing is copied that would be thrown away.  Truncated text
+ * starts with the total message count, e.g. "(12) ... see you there   ok".
+ *
+ * Null bodies (the provider has them for some messages) count as empty.
+ */
+public class NotificationTextBuilder {
+    private static final String ELLIPSIS = " ...";
+
+    private final String separator;
+    private final int maxLength;
+
+    /**
+     * @param separator goes between messages
+     * @param maxLength longest text to build
+     */
+    public NotificationTextBuilder(String separator, int maxLength) {
+        this.separator = separator;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @param unread the sender's other unread messages; the bodies should be newest first
+     * @param message the message that just arrived, shown last; may be null
+     * @return notification text, at most maxLength characters
+     */
+    public CharSequence build(UnreadPreview unread, String message) {
+        if (message == null) {
+            message = "";
+        }
+        List<String> bodies = unread.newestFirst;
+        int total = unread.count + 1;
+
+        if (message.length() > maxLength) {
+            // the new message doesn't fit by itself, so show its beginning like any long text
+            return truncateHead(message, total);
+        }
+
+        // if everything is known and fits there's no count to show
+        if (bodies.size() == unread.count) {
+            int length = message.length();
+            for (int i = 0; i < bodies.size() && length <= maxLength; i++) {
+                length += separator.length() + length(bodies.get(i));
+            }
+            if (length <= maxLength) {
+                return fill(bodies, message, maxLength, null);
+            }
+        }
+
+        String prefix = "(" + total + ")" + ELLIPSIS + " ";
+        if (prefix.length() + message.length() > maxLength) {
+            // the count doesn't fit in front of the new message, so drop the older ones instead
+            return message;
+        }
+        return fill(bodies, message, maxLength - prefix.length(), prefix);
+    }
+
+    /**
+     * Copy messages into the end of a buffer until it's full.
+     * @param prefix put before the text, or null if everything must fit
+     */
+    private CharSequence fill(List<String> bodies, String message, int length, String prefix) {
+        char[] text = new char[length];
+        int start = length;
+
+        start -= message.length();
+        message.getChars(0, message.length(), text, start);
+
+        for (int i = 0; i < bodies.size(); i++) {
+            String body = bodies.get(i) != null ? bodies.get(i) : "";
+            int room = start - separator.length();
+            if (room <= 0) {
+                break;
+            }
+
+            start = room;
+            separator.getChars(0, separator.length(), text, start);
+
+            if (body.length() <= room) {
+                start -= body.length();
+                body.getChars(0, body.length(), text, start);
+                continue;
+            }
+
+            // only the end of this message fits; start it at a word so it isn't cut mid-word
+            int from = body.length() - room;
+            int space = body.indexOf(' ', from);
+            if (space >= 0 && space < body.length() - 1) {
+                from = space + 1;
+            }
+            start -= body.length() - from;
+            body.getChars(from, body.length(), text, start);
+            break;
+        }
+
+        if (prefix == null) {
+            return new String(text, start, length - start);
+        }
+
+        StringBuilder builder = new StringBuilder(prefix.length() + length - start);
+        return builder.append(prefix).append(text, start, length - start);
+    }
+
+    private static int length(String body) {
+        return body != null ? body.length() : 0;
+    }
+
+    /**
+     * Keep the beginning of a message that's too long by itself, cut at a word.
+     */
+    private CharSequence truncateHead(String message, int total) {
+        String suffix = ELLIPSIS + " (" + total + ")";
+        int end = maxLength - suffix.length();
+        if (end <= 0) {
+            // no room for the suffix, so just cut the message
+            return message.substring(0, Math.max(0, maxLength));
+        }
+        int lastSpace = message.lastIndexOf(' ', end);
+        if (lastSpace > 0) {
+            end = lastSpace;
+        }
+
+        StringBuilder builder = new StringBuilder(end + suffix.length());
+        return builder.append(message, 0, end).append(suffix);
+    }
+}
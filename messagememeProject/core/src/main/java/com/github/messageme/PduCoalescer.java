@@ -0,0 +1,170 @@
+package com.github.messageme;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Groups the PDUs of one SMS_RECEIVED broadcast by sender so each sender
+ * is enriched and rendered once, however many parts their message had.
+ *
+ * Parts of a concatenated message are put back in order using the
+ * concatenation information element in the user data header.  Parts without
+ * one, or separate messages from the same sender, keep their arrival order
+ * and are joined with a separator.
+ */
+public class PduCoalescer {
+    /** Information element identifiers from 3GPP TS 23.040 9.2.3.24 */
+    private static final int IEI_CONCAT_8BIT = 0x00;
+    private static final int IEI_CONCAT_16BIT = 0x08;
+
+    private static final int NO_REFERENCE = -1;
+
+    private final String separator;
+    private final LinkedHashMap<String, ArrayList<Part>> senders = new LinkedHashMap<String, ArrayList<Part>>();
+    private int partCount = 0;
+
+    private static class Part {
+        final String body;
+        final int index;
+        final int reference;
+        final int sequence;
+
+        /** index of the first part with the same reference, so a concatenated message sorts where it started */
+        int groupIndex;
+
+        Part(String body, int index, int reference, int sequence) {
+            this.body = body;
+            this.index = index;
+            this.reference = reference;
+            this.sequence = sequence;
+            this.groupIndex = index;
+        }
+    }
+
+    private static final Comparator<Part> PART_ORDER = new Comparator<Part>() {
+        @Override
+        public int compare(Part a, Part b) {
+            if (a.groupIndex != b.groupIndex) {
+                return a.groupIndex < b.groupIndex ? -1 : 1;
+            }
+            if (a.sequence != b.sequence) {
+                return a.sequence < b.sequence ? -1 : 1;
+            }
+            return a.index < b.index ? -1 : (a.index == b.index ? 0 : 1);
+        }
+    };
+
+    /**
+     * @param separator text between separate messages from the same sender
+     */
+    public PduCoalescer(String separator) {
+        this.separator = separator;
+    }
+
+    /**
+     * Add one decoded PDU.
+     * @param address sender's phone number
+     * @param body decoded text of this part
+     * @param pdu raw PDU, used to read the concatenation header
+     */
+    public void add(String address, String body, byte[] pdu) {
+        ArrayList<Part> parts = senders.get(address);
+        if (parts == null) {
+            parts = new ArrayList<Part>();
+            senders.put(address, parts);
+        }
+
+        int[] concat = parseConcat(pdu);
+        Part part = concat == null
+                ? new Part(body, partCount, NO_REFERENCE, 0)
+                : new Part(body, partCount, concat[0], concat[1]);
+        partCount++;
+
+        if (part.reference != NO_REFERENCE) {
+            for (Part existing : parts) {
+                if (existing.reference == part.reference) {
+                    part.groupIndex = existing.groupIndex;
+                    break;
+                }
+            }
+        }
+        parts.add(part);
+    }
+
+    /**
+     * @return number of PDUs added
+     */
+    public int getPartCount() {
+        return partCount;
+    }
+
+    /**
+     * @return sender to full message text, in the order senders first appeared
+     */
+    public LinkedHashMap<String, String> getMessages() {
+        LinkedHashMap<String, String> messages = new LinkedHashMap<String, String>();
+
+        for (Map.Entry<String, ArrayList<Part>> sender : senders.entrySet()) {
+            ArrayList<Part> parts = sender.getValue();
+            Collections.sort(parts, PART_ORDER);
+
+            StringBuilder builder = new StringBuilder();
+            Part previous = null;
+            for (Part part : parts) {
+                if (previous != null && (part.reference == NO_REFERENCE || part.reference != previous.reference)) {
+                    builder.append(separator);
+                }
+                if (part.body != null) {
+                    builder.append(part.body);
+                }
+                previous = part;
+            }
+            messages.put(sender.getKey(), builder.toString());
+        }
+
+        return messages;
+    }
+
+    /**
+     * Read the concatenation header of a GSM SMS-DELIVER PDU.
+     * @return { reference, sequence number }, or null if the PDU isn't part of a
+     *         concatenated message or can't be parsed (e.g. CDMA)
+     */
+    static int[] parseConcat(byte[] pdu) {
+        try {
+            int i = (pdu[0] & 0xff) + 1; // skip SMSC address
+            int firstOctet = pdu[i++] & 0xff;
+            if ((firstOctet & 0x03) != 0 || (firstOctet & 0x40) == 0) {
+                // not SMS-DELIVER, or no user data header
+                return null;
+            }
+
+            int addressDigits = pdu[i++] & 0xff;
+            i += 1 + (addressDigits + 1) / 2; // type of address + semi-octets
+            i += 1 + 1 + 7; // protocol identifier, data coding scheme, timestamp
+            i += 1; // user data length
+
+            int headerEnd = i + 1 + (pdu[i] & 0xff);
+            i++;
+            while (i + 1 < headerEnd) {
+                int iei = pdu[i] & 0xff;
+                int length = pdu[i + 1] & 0xff;
+                int data = i + 2;
+
+                if (iei == IEI_CONCAT_8BIT && length == 3) {
+                    return new int[] { pdu[data] & 0xff, pdu[data + 2] & 0xff };
+                }
+                if (iei == IEI_CONCAT_16BIT && length == 4) {
+                    return new int[] { ((pdu[data] & 0xff) << 8) | (pdu[data + 1] & 0xff), pdu[data + 3] & 0xff };
+                }
+                i = data + length;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // truncated or not a GSM PDU
+        }
+        return null;
+    }
+}
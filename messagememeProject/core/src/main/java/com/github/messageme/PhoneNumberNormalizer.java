@@ -0,0 +1,168 @@
+package com.github.messageme;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Turns the different spellings of a phone number into one canonical key.
+ *
+ * The PDU address, the SMS provider's address column and the contacts
+ * provider may have "+15551234567", "5551234567" and "(555) 123-4567" for
+ * the same sender.  All of them normalize to the E.164 digits 15551234567,
+ * using a default country code for national numbers, and are packed into
+ * a long so keys can be compared and hashed without allocating.
+ *
+ * Key layout: numeric addresses use the low 50 bits for the digits and bits
+ * 50-53 for the digit count, so leading zeros are kept.  Alphanumeric senders
+ * (e.g. "AMAZON"), and any other address without digits, get a 64 bit hash of
+ * the upper-cased text with the sign bit set, so they never collide with
+ * numeric keys or with each other's notifications.
+ *
+ * Results are memoized, since the same few senders repeat constantly.
+ */
+public class PhoneNumberNormalizer {
+    /** Returned for null, empty or blank addresses */
+    public static final long NO_KEY = 0;
+
+    private static final int MAX_DIGITS = 15;
+    private static final int LENGTH_SHIFT = 50;
+    private static final long DIGITS_MASK = (1L << LENGTH_SHIFT) - 1;
+    private static final int CACHE_SIZE = 256;
+
+    private final String countryCode;
+    private final int nationalLength;
+    private final String trunkPrefix;
+    private final String internationalPrefix;
+
+    private final LinkedHashMap<String, Long> cache = new LinkedHashMap<String, Long>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * @param countryCode country calling code of the default region, e.g. "1"
+     * @param nationalLength digits in a national number without the trunk prefix, e.g. 10
+     * @param trunkPrefix prefix for national numbers dialed in full, e.g. "1" or "0"; may be empty
+     * @param internationalPrefix prefix that replaces "+" when dialing abroad, e.g. "011" or "00"
+     */
+    public PhoneNumberNormalizer(String countryCode, int nationalLength, String trunkPrefix, String internationalPrefix) {
+        this.countryCode = countryCode;
+        this.nationalLength = nationalLength;
+        this.trunkPrefix = trunkPrefix;
+        this.internationalPrefix = internationalPrefix;
+    }
+
+    /**
+     * Get the canonical key for an address.
+     * @param address phone number in any format, or an alphanumeric sender
+     * @return canonical key, or NO_KEY if the address is null, empty or blank
+     */
+    public long getKey(String address) {
+        if (address == null || address.length() == 0) {
+            return NO_KEY;
+        }
+
+        synchronized (cache) {
+            Long key = cache.get(address);
+            if (key != null) {
+                return key;
+            }
+        }
+
+        long key = computeKey(address);
+        synchronized (cache) {
+            cache.put(address, key);
+        }
+        return key;
+    }
+
+    /**
+     * @return true if both addresses normalize to the same number
+     */
+    public boolean equals(String a, String b) {
+        long key = getKey(a);
+        return key != NO_KEY && key == getKey(b);
+    }
+
+    /**
+     * Get the E.164 digits for an address, e.g. for display or logging.
+     * @return digits without the "+", or the original text for alphanumeric senders
+     */
+    public String getCanonical(String address) {
+        String digits = e164Digits(address);
+        return digits != null && digits.length() > 0 ? digits : address;
+    }
+
+    long computeKey(String address) {
+        String digits = e164Digits(address);
+        if (digits == null || digits.length() == 0) {
+            // letters or symbols only: key on the text, so each such sender keeps its own notification
+            String text = address.trim();
+            return text.length() > 0 ? hashKey(text) : NO_KEY;
+        }
+
+        // keep the last MAX_DIGITS digits, E.164 never has more
+        if (digits.length() > MAX_DIGITS) {
+            digits = digits.substring(digits.length() - MAX_DIGITS);
+        }
+        return ((long) digits.length() << LENGTH_SHIFT) | (Long.parseLong(digits) & DIGITS_MASK);
+    }
+
+    /**
+     * @return E.164 digits without the "+", or null if the address has letters
+     */
+    private String e164Digits(String address) {
+        if (address == null) {
+            return null;
+        }
+
+        StringBuilder digits = new StringBuilder(address.length());
+        boolean plus = false;
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            }
+            else if (c == '+' && digits.length() == 0) {
+                plus = true;
+            }
+            else if (Character.isLetter(c)) {
+                return null;
+            }
+            // anything else is formatting: spaces, dashes, parentheses, dots
+        }
+
+        if (plus) {
+            return digits.toString();
+        }
+
+        String number = digits.toString();
+        if (internationalPrefix.length() > 0 && number.startsWith(internationalPrefix)) {
+            return number.substring(internationalPrefix.length());
+        }
+        if (trunkPrefix.length() > 0 && number.length() == trunkPrefix.length() + nationalLength
+                && number.startsWith(trunkPrefix)) {
+            return countryCode + number.substring(trunkPrefix.length());
+        }
+        if (number.length() == nationalLength) {
+            return countryCode + number;
+        }
+
+        // short code or something we can't place, keep as is
+        return number;
+    }
+
+    /**
+     * FNV-1a hash of the upper-cased address with the sign bit set.
+     */
+    private static long hashKey(String address) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < address.length(); i++) {
+            hash ^= Character.toUpperCase(address.charAt(i));
+            hash *= 0x100000001b3L;
+        }
+        return hash | Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,43 @@
+package com.github.messageme;
+
+/**
+ * The sizing math for contact photos, kept apart from the Bitmap code so
+ * it can run off the device.
+ */
+public class PhotoScaling {
+    private PhotoScaling() {
+    }
+
+    /**
+     * Largest power of two that keeps both dimensions at or above the target,
+     * so the decoded image can still cover the icon.
+     */
+    public static int calculateInSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * The centered region of a width x height image with the target's aspect ratio.
+     * Scales along the dimension of least change, like the notification's ImageView would.
+     * @return the region as {left, top, right, bottom}
+     */
+    public static int[] centerCrop(int width, int height, int targetWidth, int targetHeight) {
+        // compare width / height against targetWidth / targetHeight without dividing
+        if ((long) width * targetHeight > (long) height * targetWidth) {
+            // too wide, crop the sides
+            int cropWidth = (int) ((long) height * targetWidth / targetHeight);
+            int left = (width - cropWidth) / 2;
+            return new int[] { left, 0, left + cropWidth, height };
+        }
+        else {
+            // too tall, crop top and bottom
+            int cropHeight = (int) ((long) width * targetHeight / targetWidth);
+            int top = (height - cropHeight) / 2;
+            return new int[] { 0, top, width, top + cropHeight };
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.github.messageme;
+
+import com.github.messageme.interfaces.Clock;
+import com.github.messageme.interfaces.ContactLookup;
+import com.github.messageme.interfaces.DelayScheduler;
+import com.github.messageme.interfaces.NotificationIdManager;
+import com.github.messageme.interfaces.PduDecoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs SMS_RECEIVED handling off the main thread.
+ *
+ * Each broadcast goes through four stages: decode (PDUs to messages),
+ * enrich (contact and unread lookups), render (build the notification)
+ * and post (NotificationManager.notify).  Decoding runs on a single thread
+ * so broadcasts are dispatched in arrival order.  Enriching runs on a
+ * bounded worker pool, serialized per sender so that messages from the
+ * same contact are never posted out of order.  Rendering and posting are
+ * batched across senders by the NotificationScheduler.
+ *
+ * The broadcast is kept open with goAsync() until all of its messages are
+ * handed to the scheduler or the configured timeout elapses, whichever
+ * comes first.
+ *
+ * Before enriching, each message passes a per-sender NotificationRateLimiter.
+ * Held messages are recorded in the UnreadMirror right away, and rendered
+ * later as one merged update, outside of the broadcast.
+ *
+ * The threads, clock and platform lookups are passed in, so the same
+ * pipeline runs on the device and in the benchmarks.
+ */
+public class ReceivePipeline {
+    private static final Logger LOG = Logger.getLogger("ReceivePipeline");
+
+    /** Goes between the messages shown in one notification */
+    public static final String MESSAGE_SEPARATOR = "   ";
+
+    private final Executor decodeExecutor;
+    private final KeyedSerialExecutor<Long> senderExecutor;
+    private final DelayScheduler timers;
+    private final Clock clock;
+    private final long timeoutMillis;
+    private final PduDecoder decoder;
+    private final ContactLookup contacts;
+    private final UnreadMirror unreadMirror;
+    private final NotificationIdManager idManager;
+    private final NotificationRateLimiter rateLimiter;
+    private final PhoneNumberNormalizer normalizer;
+    private final NotificationScheduler scheduler;
+
+    /**
+     * @param decodeExecutor single thread that decodes broadcasts in arrival order
+     * @param workerPool runs the enrich stage, see {@link #newWorkerPool}
+     * @param timers runs broadcast timeouts and the merged renders of held messages
+     * @param clock time of arrival, rate limiting and the unread mirror
+     * @param timeoutMillis how long a broadcast may stay open before it is finished regardless
+     * @param decoder reads the sender and text of each PDU
+     * @param contacts finds the sender's contact; senders that aren't contacts get no notification
+     * @param unreadMirror the sender's unread messages, and where held messages are recorded
+     * @param idManager gives each contact's notification ID
+     * @param rateLimiter decides which messages are rendered right away
+     * @param normalizer gives the canonical sender that messages are serialized on
+     * @param scheduler renders and posts the enriched messages
+     */
+    public ReceivePipeline(Executor decodeExecutor, Executor workerPool, DelayScheduler timers, Clock clock,
+                           long timeoutMillis, PduDecoder decoder, ContactLookup contacts,
+                           UnreadMirror unreadMirror, NotificationIdManager idManager,
+                           NotificationRateLimiter rateLimiter, PhoneNumberNormalizer normalizer,
+                           NotificationScheduler scheduler) {
+        this.decodeExecutor = decodeExecutor;
+        this.senderExecutor = new KeyedSerialExecutor<Long>(workerPool);
+        this.timers = timers;
+        this.clock = clock;
+        this.timeoutMillis = timeoutMillis;
+        this.decoder = decoder;
+        this.contacts = contacts;
+        this.unreadMirror = unreadMirror;
+        this.idManager = idManager;
+        this.rateLimiter = rateLimiter;
+        this.normalizer = normalizer;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * A bounded pool for the enrich stage.  When the queue is full the
+     * submitting thread runs the work itself, and idle threads exit.
+     * @param poolSize number of worker threads
+     * @param queueCapacity tasks queued before the submitting thread runs work itself
+     */
+    public static ThreadPoolExecutor newWorkerPool(int poolSize, int queueCapacity, ThreadFactory threadFactory) {
+        ThreadPoolExecutor workerPool = new ThreadPoolExecutor(poolSize, poolSize,
+                30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                threadFactory,
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        workerPool.allowCoreThreadTimeOut(true);
+        return workerPool;
+    }
+
+    /**
+     * Process an SMS_RECEIVED broadcast in the background.
+     *
+     * @param pdus the broadcast's PDUs, in the order they were delivered
+     * @param receivedAt when the broadcast arrived, on the pipeline's clock
+     * @param finished run once, when processing completes or times out (e.g. to finish goAsync())
+     */
+    public void submit(final List<byte[]> pdus, final long receivedAt, Runnable finished) {
+        final Broadcast broadcast = new Broadcast(finished);
+        timers.schedule(broadcast, timeoutMillis);
+
+        decodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<IncomingSms> messages = decode(pdus, receivedAt);
+                    broadcast.remaining.addAndGet(messages.size());
+
+                    for (final IncomingSms sms : messages) {
+                        // keyed on the canonical number so every spelling of a sender shares a queue
+                        final long key = normalizer.getKey(sms.phoneNumber);
+                        senderExecutor.execute(key, new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    if (admit(key, sms)) {
+                                        process(sms, false);
+                                    }
+                                }
+                                finally {
+                                    broadcast.taskDone();
+                                }
+                            }
+                        });
+                    }
+                } catch (Exception e) {
+                    LOG.log(Level.SEVERE, "Error in decoding messages", e);
+                }
+                finally {
+                    // the decode stage itself counts as one task
+                    broadcast.taskDone();
+                }
+            }
+        });
+    }
+
+    /**
+     * Decode stage: read the PDUs and coalesce them per sender, so a long
+     * message split over several PDUs only produces one notification update.
+     * @return one message per sender, in the order they arrived, possibly empty
+     */
+    List<IncomingSms> decode(List<byte[]> pdus, long receivedAt) {
+        long start = Metrics.start();
+
+        // Multipart messages arrive as several PDUs in the same broadcast
+        PduCoalescer coalescer = new PduCoalescer(MESSAGE_SEPARATOR);
+        for (byte[] pdu : pdus) {
+            IncomingSms part = decoder.decode(pdu, receivedAt);
+            coalescer.add(part.phoneNumber, part.body, pdu);
+        }
+
+        List<IncomingSms> messages = new ArrayList<IncomingSms>();
+        for (Map.Entry<String, String> message : coalescer.getMessages().entrySet()) {
+            messages.add(new IncomingSms(message.getKey(), message.getValue(), receivedAt));
+        }
+
+        LOG.fine("decoded " + coalescer.getPartCount() + " PDUs from " + messages.size() + " senders");
+        Metrics.end(Metrics.STAGE_DECODE, start);
+        return messages;
+    }
+
+    /**
+     * Check the rate limit for a message, scheduling a merged render if it's held.
+     * @return true if the message should be rendered now
+     */
+    private boolean admit(final long key, IncomingSms sms) {
+        long now = clock.now();
+        long delay = rateLimiter.acquire(key, sms, now);
+        if (delay == 0) {
+            return true;
+        }
+
+        // the merged update only carries the newest body, so keep each one as it's held
+        unreadMirror.hold(sms, now);
+        if (delay == NotificationRateLimiter.ALREADY_PENDING) {
+            LOG.finer("merged into pending update for " + sms.phoneNumber);
+            return false;
+        }
+
+        LOG.finer("rate limited " + sms.phoneNumber + ", rendering in " + delay + "ms");
+        timers.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // back on the sender's queue so it stays in order with newer messages
+                senderExecutor.execute(key, new Runnable() {
+                    @Override
+                    public void run() {
+                        IncomingSms merged = rateLimiter.takePending(key, clock.now());
+                        if (merged != null) {
+                            LOG.finer("rendering " + merged.messageCount + " merged updates for " + merged.phoneNumber);
+                            process(merged, true);
+                        }
+                    }
+                });
+            }
+        }, delay);
+        return false;
+    }
+
+    public NotificationRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * @param held true for a merged update of held messages, which are already in the unread mirror
+     */
+    private void process(IncomingSms sms, boolean held) {
+        try {
+            EnrichedSms enriched = enrich(sms, held);
+            if (enriched == null) {
+                return;
+            }
+
+            scheduler.submit(this, enriched);
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Error in showing notification", e);
+        }
+    }
+
+    /**
+     * Enrich stage: look up the contact and any unread messages from the sender.
+     * @param held true for a merged update of held messages, which are already in the unread mirror
+     * @return the enriched message, or null if the sender isn't a contact and shouldn't get a notification
+     */
+    EnrichedSms enrich(IncomingSms sms, boolean held) {
+        String phoneNumber = sms.phoneNumber;
+        long start = Metrics.start();
+        Contact contact = contacts.lookup(phoneNumber);
+        Metrics.end(Metrics.STAGE_CONTACT_LOOKUP, start);
+        Metrics.count(contact != null ? Metrics.CONTACT_HIT : Metrics.CONTACT_MISS);
+
+        if (contact == null) {
+            LOG.finer("No contact name for " + phoneNumber + ", not showing popup");
+            return null;
+        }
+
+        // from memory; the provider is only read the first time this process sees the sender
+        start = Metrics.start();
+        UnreadPreview unread = held
+                ? unreadMirror.getHeldPreview(sms)
+                : unreadMirror.receive(sms, clock.now());
+        Metrics.end(Metrics.STAGE_GET_UNREAD, start);
+        if (sms.messageCount > 1 && unread.count < sms.messageCount - 1) {
+            // held messages still count if the mirror had to reload the sender from the provider
+            unread = new UnreadPreview(sms.messageCount - 1, unread.newestFirst);
+        }
+
+        return new EnrichedSms(sms, contact.name, contact.contactId, contact.photoId, contact.version, unread, idManager.getId(phoneNumber));
+    }
+
+    /**
+     * Enrich a message again for a notification that's being re-posted, e.g. when the
+     * summary is split up, so it shows the sender's unread messages and contact as they
+     * are now.  Unlike {@link #enrich} the message isn't recorded as new.
+     * @return the fresh update, or null if the sender is no longer a contact
+     */
+    EnrichedSms reenrich(EnrichedSms stale) {
+        IncomingSms sms = stale.sms;
+        Contact contact = contacts.lookup(sms.phoneNumber);
+        if (contact == null) {
+            return null;
+        }
+
+        // already recorded, so this is the same preview a merged update of it would get
+        UnreadPreview unread = unreadMirror.getHeldPreview(sms);
+        return new EnrichedSms(sms, contact.name, contact.contactId, contact.photoId, contact.version, unread, stale.notificationId);
+    }
+
+    /**
+     * Tracks the outstanding work for one broadcast.  Runs as the timeout callback.
+     */
+    private class Broadcast implements Runnable {
+        private final Runnable finished;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+
+        /** Starts at 1 for the decode task */
+        final AtomicInteger remaining = new AtomicInteger(1);
+
+        Broadcast(Runnable finished) {
+            this.finished = finished;
+        }
+
+        void taskDone() {
+            if (remaining.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!done.get()) {
+                LOG.warning("Broadcast timed out after " + timeoutMillis + "ms with " + remaining.get() + " messages pending");
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (done.compareAndSet(false, true)) {
+                finished.run();
+            }
+        }
+    }
+}
@@ -24,17 +24,20 @@ public class StaticVarNotificationIdManager implements NotificationIdManager {
 
     @Override
     public int getId(String phoneNumber, boolean createIfNotFound) {
-        Integer savedId = idMap.get(phoneNumber);
-        if (savedId != null) {
-            return savedId.intValue();
-        }
-
-        if (createIfNotFound) {
-            idMap.put(phoneNumber, new Integer(nextId));
-            return nextId++;
-        }
-        else {
-            return ID_NOT_FOUND;
+        // the receive pipeline calls this from worker threads
+        synchronized (idMap) {
+            Integer savedId = idMap.get(phoneNumber);
+            if (savedId != null) {
+                return savedId.intValue();
+            }
+
+            if (createIfNotFound) {
+                idMap.put(phoneNumber, new Integer(nextId));
+                return nextId++;
+            }
+            else {
+                return ID_NOT_FOUND;
+            }
         }
     }
 
@@ -50,6 +53,8 @@ public class StaticVarNotificationIdManager implements NotificationIdManager {
 
     @Override
     public void removeNotificationPhoneNumber(String phoneNumber) {
-        idMap.remove(phoneNumber);
+        synchronized (idMap) {
+            idMap.remove(phoneNumber);
+        }
     }
 }
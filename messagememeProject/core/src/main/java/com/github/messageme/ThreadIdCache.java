@@ -0,0 +1,101 @@
+package com.github.messageme;
+
+import com.github.messageme.interfaces.ThreadIdResolver;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the conversation thread ID for each address, so SMS queries can
+ * filter on thread_id instead of comparing address strings.
+ *
+ * IDs are resolved lazily.  Reads only look for a thread the address already
+ * has; the lookup that creates one (the mms-sms threadID URI on the device)
+ * is kept for writes, so showing or counting a sender's messages never leaves
+ * an empty conversation behind.  An address without a thread isn't cached,
+ * and callers fall back to comparing addresses.
+ *
+ * The observer keeps the cache fresh: every new inbox row it reads updates
+ * its address's entry, so a conversation that was deleted and recreated
+ * gets its new ID, and entries are dropped when their notification is
+ * dismissed.
+ */
+public class ThreadIdCache {
+    /** Returned when the thread ID can't be resolved */
+    public static final long NO_THREAD = 0;
+
+    private final ThreadIdResolver resolver;
+    private final PhoneNumberNormalizer normalizer;
+
+    /** canonical phone number key to thread ID */
+    private final ConcurrentHashMap<Long, Long> threadIds = new ConcurrentHashMap<Long, Long>();
+
+    public ThreadIdCache(ThreadIdResolver resolver, PhoneNumberNormalizer normalizer) {
+        this.resolver = resolver;
+        this.normalizer = normalizer;
+    }
+
+    /**
+     * Get the thread ID of an existing conversation, looking it up and caching it if necessary.
+     * Never creates a thread.
+     * @param phoneNumber phone number (not normalized)
+     * @return thread ID, or NO_THREAD if the address has no thread or it couldn't be found
+     */
+    public long getThreadId(String phoneNumber) {
+        return getThreadId(phoneNumber, false);
+    }
+
+    /**
+     * Get the thread ID for an address, creating the conversation if it doesn't have one.
+     * Only for writes that put a message in the thread.
+     * @param phoneNumber phone number (not normalized)
+     * @return thread ID, or NO_THREAD if it couldn't be resolved
+     */
+    public long getOrCreateThreadId(String phoneNumber) {
+        return getThreadId(phoneNumber, true);
+    }
+
+    private long getThreadId(String phoneNumber, boolean create) {
+        long key = normalizer.getKey(phoneNumber);
+        if (key == PhoneNumberNormalizer.NO_KEY) {
+            return NO_THREAD;
+        }
+
+        Long cached = threadIds.get(key);
+        if (cached != null) {
+            Metrics.count(Metrics.THREAD_ID_HIT);
+            return cached;
+        }
+        Metrics.count(Metrics.THREAD_ID_MISS);
+
+        long threadId = create ? resolver.getOrCreateThreadId(phoneNumber) : resolver.findThreadId(phoneNumber);
+        if (threadId != NO_THREAD) {
+            threadIds.put(key, threadId);
+        }
+        return threadId;
+    }
+
+    /**
+     * Record the thread of a message that was just read from the provider.
+     */
+    public void put(String phoneNumber, long threadId) {
+        long key = normalizer.getKey(phoneNumber);
+        if (key != PhoneNumberNormalizer.NO_KEY && threadId != NO_THREAD) {
+            threadIds.put(key, threadId);
+        }
+    }
+
+    public void invalidate(String phoneNumber) {
+        threadIds.remove(normalizer.getKey(phoneNumber));
+    }
+
+    public void invalidateAll() {
+        threadIds.clear();
+    }
+
+    /**
+     * @return number of addresses cached
+     */
+    public int size() {
+        return threadIds.size();
+    }
+}
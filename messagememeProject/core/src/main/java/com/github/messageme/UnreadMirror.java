@@ -0,0 +1,309 @@
+package com.github.messageme;
+
+import com.github.messageme.interfaces.SmsStore;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Each sender's unread messages, kept in memory so a notification can be
+ * rendered without querying the SMS provider.
+ *
+ * For each sender the mirror keeps the unread count, the newest few bodies
+ * and when it last changed locally.  A sender is loaded from the store the
+ * first time a message arrives from them; after that the mirror is updated
+ * from the incoming messages themselves and from markRead.  Messages held
+ * back by the rate limiter are recorded as they're held ({@link #hold}), so
+ * a merged update shows all of their bodies.  The mirror is corrected
+ * against the store by the observer's unread counts ({@link #applyCounts})
+ * and by a periodic {@link #reconcile}, and a sender is forgotten when
+ * their notification is dismissed.
+ *
+ * The provider lags the broadcast: a message is in the mirror before the
+ * messaging app has written it.  So a sender that changed locally within
+ * the grace period is never corrected, or the store would take back the
+ * messages it hasn't caught up with yet.
+ *
+ * Times are SystemClock.elapsedRealtime() values passed in by the caller.
+ */
+public class UnreadMirror {
+    private static final Logger LOG = Logger.getLogger("UnreadMirror");
+
+    /** Above this many senders, the least recently used is dropped and reloaded if needed */
+    private static final int MAX_SENDERS = 256;
+
+    private final SmsStore smsStore;
+    private final int maxMessages;
+    private final long graceMillis;
+
+    /** canonical phone number key to entry, least recently used first; guarded by this */
+    private final LinkedHashMap<Long, SenderState> entries = new LinkedHashMap<Long, SenderState>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, SenderState> eldest) {
+            return size() > MAX_SENDERS;
+        }
+    };
+
+    private static class SenderState {
+        final String phoneNumber;
+        int count;
+
+        /**
+         * bodies of the newest unread messages, oldest first; at most count of them, and one more
+         * than maxMessages so a merged update still has maxMessages before its own
+         */
+        final ArrayDeque<String> bodies = new ArrayDeque<String>();
+
+        /** time of the last local change, or 0 if the entry is as loaded from the store */
+        long lastUpdated;
+
+        SenderState(String phoneNumber, UnreadPreview preview) {
+            this.phoneNumber = phoneNumber;
+            this.count = preview.count;
+            for (String body : preview.newestFirst) {
+                bodies.addFirst(body);
+            }
+        }
+
+        /**
+         * @param skip how many of the newest messages to leave out
+         * @param maxMessages bodies to include at most
+         */
+        UnreadPreview getPreview(int skip, int maxMessages) {
+            List<String> newestFirst = new ArrayList<String>(Math.min(bodies.size(), maxMessages));
+            Iterator<String> newest = bodies.descendingIterator();
+            for (int i = 0; newest.hasNext() && newestFirst.size() < maxMessages; i++) {
+                String body = newest.next();
+                if (i >= skip) {
+                    newestFirst.add(body);
+                }
+            }
+            return new UnreadPreview(Math.max(0, count - skip), newestFirst);
+        }
+
+        void trim(int maxCount) {
+            while (bodies.size() > maxCount) {
+                bodies.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * @param maxMessages bodies kept per sender, the most a notification shows
+     * @param graceMillis how long after a local change the store isn't trusted over the mirror
+     */
+    public UnreadMirror(SmsStore smsStore, int maxMessages, long graceMillis) {
+        this.smsStore = smsStore;
+        this.maxMessages = maxMessages;
+        this.graceMillis = graceMillis;
+    }
+
+    /**
+     * Record an incoming message.
+     * @param sms the message, counted as its messageCount messages
+     * @param now current SystemClock.elapsedRealtime()
+     * @return the sender's unread messages before this one
+     */
+    public UnreadPreview receive(IncomingSms sms, long now) {
+        return record(sms, now);
+    }
+
+    /**
+     * Record a message that the rate limiter is holding back, so its body is
+     * there when the held messages are rendered with {@link #getHeldPreview}.
+     * @param now current SystemClock.elapsedRealtime()
+     */
+    public void hold(IncomingSms sms, long now) {
+        record(sms, now);
+    }
+
+    /**
+     * Get the preview for a merged update, whose messages were all recorded by {@link #hold}.
+     * @param sms the newest held message, which the update shows as its own text
+     * @return the sender's unread messages before that one
+     */
+    public UnreadPreview getHeldPreview(IncomingSms sms) {
+        long key = smsStore.getNormalizer().getKey(sms.phoneNumber);
+        if (key == PhoneNumberNormalizer.NO_KEY) {
+            return smsStore.getUnreadPreview(sms.phoneNumber, maxMessages);
+        }
+
+        SenderState entry = getEntry(key, sms.phoneNumber);
+        synchronized (this) {
+            return entry.getPreview(1, maxMessages);
+        }
+    }
+
+    /**
+     * Drop a sender, e.g. when their notification is dismissed because the store has nothing
+     * unread from them.  Their next message loads them from the store again.
+     */
+    public synchronized void forget(String phoneNumber) {
+        entries.remove(smsStore.getNormalizer().getKey(phoneNumber));
+    }
+
+    /**
+     * @return the sender's unread messages before this one
+     */
+    private UnreadPreview record(IncomingSms sms, long now) {
+        long key = smsStore.getNormalizer().getKey(sms.phoneNumber);
+        if (key == PhoneNumberNormalizer.NO_KEY) {
+            return smsStore.getUnreadPreview(sms.phoneNumber, maxMessages);
+        }
+
+        while (true) {
+            SenderState entry = getEntry(key, sms.phoneNumber);
+            synchronized (this) {
+                if (entries.get(key) != entry) {
+                    // dropped by a correction since it was loaded, so load it again
+                    continue;
+                }
+                UnreadPreview preview = entry.getPreview(0, maxMessages);
+                entry.count += sms.messageCount;
+                entry.bodies.addLast(sms.body);
+                entry.trim(maxMessages + 1);
+                entry.lastUpdated = now;
+                return preview;
+            }
+        }
+    }
+
+    /**
+     * Record that all of a sender's messages have been read.
+     * @param now current SystemClock.elapsedRealtime()
+     */
+    public synchronized void markRead(String phoneNumber, long now) {
+        long key = smsStore.getNormalizer().getKey(phoneNumber);
+        if (key == PhoneNumberNormalizer.NO_KEY) {
+            return;
+        }
+
+        SenderState entry = entries.get(key);
+        if (entry == null) {
+            entry = new SenderState(phoneNumber, new UnreadPreview(0, new ArrayList<String>(0)));
+            entries.put(key, entry);
+        }
+        entry.count = 0;
+        entry.bodies.clear();
+        entry.lastUpdated = now;
+    }
+
+    /**
+     * Correct the mirror with unread counts just read from the store.
+     * @param phoneNumbers the senders that were counted
+     * @param unreadCounts canonical phone number key to unread count; missing senders count as 0
+     * @param now SystemClock.elapsedRealtime() when the counts were read
+     * @return the number of senders that disagreed with the store
+     */
+    public synchronized int applyCounts(Iterable<String> phoneNumbers, LongIntMap unreadCounts, long now) {
+        PhoneNumberNormalizer normalizer = smsStore.getNormalizer();
+        int stale = 0;
+        for (String phoneNumber : phoneNumbers) {
+            long key = normalizer.getKey(phoneNumber);
+            SenderState entry = entries.get(key);
+            int storeCount = unreadCounts.get(key, 0);
+            if (entry != null && isStale(entry, storeCount, now)) {
+                stale++;
+                if (!correct(entry, storeCount)) {
+                    entries.remove(key);
+                }
+            }
+        }
+        return stale;
+    }
+
+    /**
+     * Check every sender against the store's unread counts, with one query.
+     * Meant to run periodically on a background thread.
+     * @param now current SystemClock.elapsedRealtime()
+     * @return the number of senders that disagreed with the store
+     */
+    public int reconcile(long now) {
+        synchronized (this) {
+            if (entries.isEmpty()) {
+                return 0;
+            }
+        }
+
+        LongIntMap unreadCounts = new LongIntMap(16);
+        smsStore.getUnreadCounts(unreadCounts);
+
+        int stale = 0;
+        synchronized (this) {
+            Iterator<Map.Entry<Long, SenderState>> i = entries.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<Long, SenderState> mapEntry = i.next();
+                SenderState entry = mapEntry.getValue();
+                int storeCount = unreadCounts.get(mapEntry.getKey(), 0);
+                if (isStale(entry, storeCount, now)) {
+                    stale++;
+                    if (!correct(entry, storeCount)) {
+                        i.remove();
+                    }
+                }
+            }
+        }
+        LOG.fine("reconciled, " + stale + " senders were stale");
+        return stale;
+    }
+
+    /**
+     * @return the number of senders in the mirror
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Get a sender's entry, loading it from the store if it isn't in the mirror.
+     */
+    private SenderState getEntry(long key, String phoneNumber) {
+        synchronized (this) {
+            SenderState entry = entries.get(key);
+            if (entry != null) {
+                Metrics.count(Metrics.UNREAD_MIRROR_HIT);
+                return entry;
+            }
+        }
+
+        // read outside the lock; if another thread loaded or changed the sender meanwhile, theirs wins
+        Metrics.count(Metrics.UNREAD_MIRROR_LOAD);
+        UnreadPreview preview = smsStore.getUnreadPreview(phoneNumber, maxMessages);
+        synchronized (this) {
+            SenderState entry = entries.get(key);
+            if (entry == null) {
+                entry = new SenderState(phoneNumber, preview);
+                entries.put(key, entry);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * @return true if an entry disagrees with the store's count and hasn't changed locally within the grace period
+     */
+    private boolean isStale(SenderState entry, int storeCount, long now) {
+        return entry.count != storeCount && now - entry.lastUpdated >= graceMillis;
+    }
+
+    /**
+     * Bring a stale entry in line with the store's count.
+     * @return false if the entry has to be dropped, because the store has messages it doesn't
+     */
+    private boolean correct(SenderState entry, int storeCount) {
+        Metrics.count(Metrics.UNREAD_MIRROR_STALE);
+        LOG.fine(entry.phoneNumber + " has " + storeCount + " unread messages, mirror had " + entry.count);
+        if (storeCount > entry.count) {
+            return false;
+        }
+        // the oldest are read first
+        entry.count = storeCount;
+        entry.trim(storeCount);
+        return true;
+    }
+}
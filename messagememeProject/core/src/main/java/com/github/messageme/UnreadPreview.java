@@ -0,0 +1,20 @@
+package com.github.messageme;
+
+import java.util.List;
+
+/**
+ * A sender's unread messages, summarized for a notification: how many
+ * there are and the text of the newest few.
+ */
+public class UnreadPreview {
+    /** number of unread messages */
+    public final int count;
+
+    /** bodies of the newest unread messages, newest first; at most count of them */
+    public final List<String> newestFirst;
+
+    public UnreadPreview(int count, List<String> newestFirst) {
+        this.count = count;
+        this.newestFirst = newestFirst;
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.messageme;
+
+import com.github.messageme.interfaces.SmsStore;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Keeps unread counts for the phone numbers with active notifications up to
+ * date without rescanning the inbox on every change.
+ *
+ * Numbers are tracked by their canonical key, so the provider's spelling of
+ * an address doesn't have to match the notification's.
+ *
+ * The IDs of each tracked number's unread messages are kept in memory, along
+ * with the highest message ID seen (the watermark).  On each update only
+ * messages above the watermark are read, and the tracked IDs are checked to
+ * see which are still unread.  The full per-number scan only happens after
+ * a reset or when a number starts being tracked.  When the caller knows
+ * which messages changed, {@link #updateRows} reads only those.
+ */
+public class UnreadTracker {
+    private static final Logger LOG = Logger.getLogger("UnreadTracker");
+    private static final long NO_WATERMARK = -1;
+
+    private final SmsStore smsStore;
+
+    /** canonical key of each tracked phone number to the IDs of its unread messages */
+    private final HashMap<Long, HashSet<Long>> unreadIds = new HashMap<Long, HashSet<Long>>();
+
+    private long watermark = NO_WATERMARK;
+
+    public UnreadTracker(SmsStore smsStore) {
+        this.smsStore = smsStore;
+    }
+
+    /**
+     * Forget everything, so the next update rescans each number.
+     */
+    public synchronized void reset() {
+        unreadIds.clear();
+        watermark = NO_WATERMARK;
+    }
+
+    /**
+     * Bring the counts up to date.
+     * @param phoneNumbers the numbers to track; any others are dropped
+     * @param unreadCounts cleared and filled with the canonical key of each tracked number to its count
+     */
+    public synchronized void update(Iterable<String> phoneNumbers, LongIntMap unreadCounts) {
+        PhoneNumberNormalizer normalizer = smsStore.getNormalizer();
+        HashMap<Long, String> tracked = new HashMap<Long, String>();
+        for (String phoneNumber : phoneNumbers) {
+            tracked.put(normalizer.getKey(phoneNumber), phoneNumber);
+        }
+        unreadIds.keySet().retainAll(tracked.keySet());
+
+        if (watermark == NO_WATERMARK) {
+            // take the watermark first so messages arriving during the scan are picked up next time
+            watermark = smsStore.getMaxInboxId();
+        }
+        else {
+            watermark = smsStore.getUnreadSince(watermark, unreadIds);
+
+            HashSet<Long> allIds = new HashSet<Long>();
+            for (HashSet<Long> ids : unreadIds.values()) {
+                allIds.addAll(ids);
+            }
+            smsStore.retainUnread(allIds);
+            for (HashSet<Long> ids : unreadIds.values()) {
+                ids.retainAll(allIds);
+            }
+        }
+
+        for (Map.Entry<Long, String> entry : tracked.entrySet()) {
+            if (!unreadIds.containsKey(entry.getKey())) {
+                LOG.fine("scanning " + entry.getValue());
+                HashSet<Long> ids = new HashSet<Long>();
+                smsStore.getUnreadIds(entry.getValue(), ids);
+                unreadIds.put(entry.getKey(), ids);
+            }
+        }
+
+        getCounts(unreadCounts);
+    }
+
+    /**
+     * Bring the counts up to date when only the given messages changed, reading just those rows.
+     * Falls back to a full {@link #update} if a number isn't tracked yet.
+     * @param phoneNumbers the numbers to track; any others are dropped
+     * @param changedIds IDs of the messages that changed
+     * @param unreadCounts cleared and filled with the canonical key of each tracked number to its count
+     */
+    public synchronized void updateRows(Iterable<String> phoneNumbers, Collection<Long> changedIds,
+                                        LongIntMap unreadCounts) {
+        PhoneNumberNormalizer normalizer = smsStore.getNormalizer();
+        HashMap<Long, String> tracked = new HashMap<Long, String>();
+        for (String phoneNumber : phoneNumbers) {
+            tracked.put(normalizer.getKey(phoneNumber), phoneNumber);
+        }
+
+        if (watermark == NO_WATERMARK || !unreadIds.keySet().containsAll(tracked.keySet())) {
+            update(phoneNumbers, unreadCounts);
+            return;
+        }
+        unreadIds.keySet().retainAll(tracked.keySet());
+
+        // forget the changed messages, then add back the ones that are (still) unread.
+        // The watermark stays put: messages below a new one may not have been seen yet.
+        for (HashSet<Long> ids : unreadIds.values()) {
+            ids.removeAll(changedIds);
+        }
+        smsStore.getUnreadAmong(changedIds, unreadIds);
+
+        getCounts(unreadCounts);
+    }
+
+    private void getCounts(LongIntMap unreadCounts) {
+        unreadCounts.clear();
+        for (Map.Entry<Long, HashSet<Long>> entry : unreadIds.entrySet()) {
+            if (entry.getKey() != PhoneNumberNormalizer.NO_KEY) {
+                unreadCounts.put(entry.getKey(), entry.getValue().size());
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.github.messageme.interfaces;
+
+/**
+ * The time the receive path runs on.  On the device this is
+ * SystemClock.elapsedRealtime(); replays supply their trace's clock.
+ */
+public interface Clock {
+    /**
+     * @return milliseconds on a monotonic clock
+     */
+    public long now();
+}
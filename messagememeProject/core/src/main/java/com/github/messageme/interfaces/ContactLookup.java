@@ -0,0 +1,15 @@
+package com.github.messageme.interfaces;
+
+import com.github.messageme.Contact;
+
+/**
+ * Finds the contact an incoming message is from.  On the device this is the
+ * ContactIndex.
+ */
+public interface ContactLookup {
+    /**
+     * @param phoneNumber phone number (not normalized)
+     * @return the contact, or null if the number doesn't belong to one
+     */
+    public Contact lookup(String phoneNumber);
+}
@@ -0,0 +1,13 @@
+package com.github.messageme.interfaces;
+
+/**
+ * Runs tasks after a delay, on the scheduler's own thread.  On the device
+ * this is a background ScheduledExecutorService (ExecutorDelayScheduler);
+ * replays run the tasks when their trace clock gets there.
+ */
+public interface DelayScheduler {
+    /**
+     * @param delayMillis delay on the same clock as the receive path's {@link Clock}
+     */
+    public void schedule(Runnable task, long delayMillis);
+}
@@ -0,0 +1,30 @@
+package com.github.messageme.interfaces;
+
+import com.github.messageme.EnrichedSms;
+
+import java.util.List;
+
+/**
+ * Shows notifications.  The NotificationScheduler decides what is posted
+ * and when; this renders and posts it.  On the device it's the
+ * NotificationManager; off the device it can count or time the posts.
+ *
+ * Only called from the scheduler's frame thread.
+ */
+public interface Notifier {
+    /**
+     * Render and post one contact's notification, replacing any it already has.
+     */
+    public void post(EnrichedSms enriched);
+
+    /**
+     * Post the summary that stands in for the contacts' notifications, replacing any shown.
+     * It carries the quick responses for the first contact, who was updated most recently.
+     * @param newestFirst the contacts with notifications, most recently updated first
+     */
+    public void postSummary(List<EnrichedSms> newestFirst);
+
+    public void cancel(int notificationId);
+
+    public void cancelSummary();
+}
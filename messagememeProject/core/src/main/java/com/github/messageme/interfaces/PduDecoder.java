@@ -0,0 +1,16 @@
+package com.github.messageme.interfaces;
+
+import com.github.messageme.IncomingSms;
+
+/**
+ * Reads the sender and text of one SMS PDU.  On the device this is
+ * SmsMessage.createFromPdu; off the device it's a GSM decoder.
+ */
+public interface PduDecoder {
+    /**
+     * @param pdu one PDU from an SMS_RECEIVED broadcast
+     * @param receivedAt when the broadcast arrived, see {@link Clock}
+     * @return the part's sender and text; for one part of a multipart message, just that part's text
+     */
+    public IncomingSms decode(byte[] pdu, long receivedAt);
+}
@@ -0,0 +1,88 @@
+package com.github.messageme.interfaces;
+
+import com.github.messageme.LongIntMap;
+import com.github.messageme.PhoneNumberNormalizer;
+import com.github.messageme.UnreadPreview;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The SMS messages the app reads and writes.  On the device this is the
+ * SMS content provider (SmsDatabase); off the device it can be faked, so
+ * the code built on it can run and be benchmarked on a plain JVM.
+ *
+ * Phone numbers are passed as received (not normalized).  Writes may be
+ * batched until {@link #flushWrites} is called.
+ */
+public interface SmsStore {
+    /**
+     * @return the normalizer used to match phone numbers
+     */
+    public PhoneNumberNormalizer getNormalizer();
+
+    /**
+     * Mark all messages from this contact as read.
+     */
+    public void markRead(String phoneNumber);
+
+    /**
+     * Mark all messages from each of these contacts as read, and apply the writes.
+     */
+    public void markAllRead(Iterable<String> phoneNumbers);
+
+    /**
+     * Apply any batched writes now.
+     */
+    public void flushWrites();
+
+    /**
+     * @return all unread messages from this contact, in chronological order
+     */
+    public List<String> getUnread(String phoneNumber);
+
+    /**
+     * @return the number of unread messages from this contact and the newest maxMessages of them
+     */
+    public UnreadPreview getUnreadPreview(String phoneNumber, int maxMessages);
+
+    /**
+     * Write a message sent to this contact.
+     */
+    public void writeSentMessage(String phoneNumber, String messageBody);
+
+    /**
+     * Count the unread messages from every sender.
+     * @param unreadCounts cleared and filled with canonical phone number keys to counts
+     */
+    public void getUnreadCounts(LongIntMap unreadCounts);
+
+    /**
+     * Add the IDs of all unread messages from this contact to a collection.
+     */
+    public void getUnreadIds(String phoneNumber, Collection<Long> ids);
+
+    /**
+     * @return the highest message ID in the inbox, or 0 if it's empty
+     */
+    public long getMaxInboxId();
+
+    /**
+     * Find unread messages newer than a message ID from the given contacts.
+     * @param unreadIds canonical phone number keys to the collections their new unread message IDs are added to
+     * @return the highest message ID seen, or afterId if there were no new messages
+     */
+    public long getUnreadSince(long afterId, Map<Long, ? extends Collection<Long>> unreadIds);
+
+    /**
+     * Find which of the given messages are unread, and who they're from.
+     * @param unreadIds canonical phone number keys to the collections their unread message IDs are added to
+     */
+    public void getUnreadAmong(Collection<Long> ids, Map<Long, ? extends Collection<Long>> unreadIds);
+
+    /**
+     * Remove the messages that are no longer unread (or no longer exist) from a collection of message IDs.
+     */
+    public void retainUnread(Collection<Long> ids);
+}
@@ -0,0 +1,23 @@
+package com.github.messageme.interfaces;
+
+/**
+ * Finds the conversation thread of an address.  On the device this queries
+ * the SMS provider (ProviderThreadIdResolver); off the device it's answered
+ * by the in-memory store.
+ *
+ * Phone numbers are passed as received (not normalized).
+ */
+public interface ThreadIdResolver {
+    /**
+     * Find the thread an address already has, without creating one.
+     * @return thread ID, or ThreadIdCache.NO_THREAD if there is none or it couldn't be found
+     */
+    public long findThreadId(String phoneNumber);
+
+    /**
+     * Get the thread for an address, creating it if the address doesn't have one yet.
+     * Only for writes, which put a message in the thread.
+     * @return thread ID, or ThreadIdCache.NO_THREAD if it couldn't be resolved
+     */
+    public long getOrCreateThreadId(String phoneNumber);
+}
@@ -0,0 +1,161 @@
+package com.github.messageme;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stress tests: many threads hammering the same phone numbers at once.
+ */
+public class ConcurrentNotificationIdManagerTest {
+    private static final int THREADS = 16;
+    private static final int NUMBERS = 2000;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    private final ConcurrentNotificationIdManager manager =
+            new ConcurrentNotificationIdManager(new PhoneNumberNormalizer("1", 10, "1", "011"));
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static String number(int i) {
+        return "+1212" + (5000000 + i);
+    }
+
+    /** the same number as {@link #number}, spelled the way a contact would have it */
+    private static String localNumber(int i) {
+        String digits = Integer.toString(5000000 + i);
+        return "(212) " + digits.substring(0, 3) + "-" + digits.substring(3);
+    }
+
+    /**
+     * Run a task on every thread, started together so they contend.
+     */
+    private <T> List<T> runTogether(final Callable<T> task) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        for (int t = 0; t < THREADS; t++) {
+            futures.add(executor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    start.await();
+                    return task.call();
+                }
+            }));
+        }
+        start.countDown();
+
+        List<T> results = new ArrayList<T>();
+        for (Future<T> future : futures) {
+            results.add(future.get(60, TimeUnit.SECONDS));
+        }
+        return results;
+    }
+
+    @Test
+    public void everyThreadGetsTheSameUniqueIds() throws Exception {
+        List<int[]> seen = runTogether(new Callable<int[]>() {
+            @Override
+            public int[] call() {
+                int[] ids = new int[NUMBERS];
+                for (int i = 0; i < NUMBERS; i++) {
+                    // half the threads use the other spelling, which must share the ID
+                    ids[i] = manager.getId(Thread.currentThread().getId() % 2 == 0 ? number(i) : localNumber(i));
+                }
+                return ids;
+            }
+        });
+
+        assertEquals(NUMBERS, manager.size());
+        HashSet<Integer> unique = new HashSet<Integer>();
+        for (int i = 0; i < NUMBERS; i++) {
+            int id = manager.getId(number(i), false);
+            assertTrue(unique.add(id));
+            for (int[] ids : seen) {
+                assertEquals(id, ids[i]);
+            }
+        }
+
+        // IDs that lost a race are reused, so the range stays close to the number of numbers
+        for (Integer id : unique) {
+            assertTrue("id " + id, id < NUMBERS + THREADS);
+        }
+    }
+
+    @Test
+    public void noLostUpdatesUnderChurn() throws Exception {
+        final int rounds = 200;
+        final int perThread = NUMBERS / THREADS;
+        final int[] nextThread = { 0 };
+
+        List<Map<String, Integer>> kept = runTogether(new Callable<Map<String, Integer>>() {
+            @Override
+            public Map<String, Integer> call() {
+                int thread;
+                synchronized (nextThread) {
+                    thread = nextThread[0]++;
+                }
+                // each thread adds and removes its own numbers while the others do theirs
+                HashMap<String, Integer> ids = new HashMap<String, Integer>();
+                for (int round = 0; round < rounds; round++) {
+                    for (int i = 0; i < perThread; i++) {
+                        String phoneNumber = number(thread * perThread + i);
+                        if ((round + i) % 3 == 0) {
+                            manager.removeNotificationPhoneNumber(phoneNumber);
+                            ids.remove(phoneNumber);
+                        }
+                        else {
+                            ids.put(phoneNumber, manager.getId(phoneNumber));
+                        }
+                    }
+                    // iterating a snapshot while the others change the map must not throw
+                    int count = 0;
+                    for (String ignored : manager.getActiveNotificationPhoneNumbers()) {
+                        count++;
+                    }
+                    assertTrue(count <= NUMBERS);
+                }
+                return ids;
+            }
+        });
+
+        HashMap<String, Integer> expected = new HashMap<String, Integer>();
+        for (Map<String, Integer> ids : kept) {
+            expected.putAll(ids);
+        }
+        assertEquals(expected.keySet(), manager.getActiveNotificationPhoneNumbers());
+        HashSet<Integer> unique = new HashSet<Integer>();
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue().intValue(), manager.getId(entry.getKey(), false));
+            assertTrue(unique.add(entry.getValue()));
+        }
+    }
+
+    @Test
+    public void removedIdsAreReused() {
+        for (int i = 0; i < 10; i++) {
+            manager.getId(number(i));
+        }
+        int freed = manager.getId(number(3));
+        manager.removeNotificationPhoneNumber(localNumber(3));
+
+        assertEquals(-1, manager.getId(number(3), false));
+        assertEquals(freed, manager.getId(number(100)));
+    }
+}
@@ -0,0 +1,124 @@
+package com.github.messageme;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationRateLimiterTest {
+    private static final int PER_MINUTE = 12;
+    private static final int BURST = 3;
+    private static final long FLOODER = 1;
+    private static final long FRIEND = 2;
+
+    private final NotificationRateLimiter limiter = new NotificationRateLimiter(PER_MINUTE, BURST);
+
+    /** renders in time order, as the pipeline would post them */
+    private final List<IncomingSms> renders = new ArrayList<IncomingSms>();
+    private final List<Long> renderTimes = new ArrayList<Long>();
+
+    /** when the pending render for the flooder is due, or -1 */
+    private long due = -1;
+
+    private void render(IncomingSms sms, long now) {
+        renders.add(sms);
+        renderTimes.add(now);
+    }
+
+    /**
+     * Deliver one message, rendering the held update first if it's due, like the pipeline's delayed render.
+     */
+    private void deliver(long key, IncomingSms sms, long now) {
+        if (due >= 0 && due <= now) {
+            render(limiter.takePending(FLOODER, due), due);
+            due = -1;
+        }
+
+        long delay = limiter.acquire(key, sms, now);
+        if (delay == 0) {
+            render(sms, now);
+        }
+        else if (delay != NotificationRateLimiter.ALREADY_PENDING) {
+            due = now + delay;
+        }
+    }
+
+    @Test
+    public void burstOfAThousandIsMergedWithCountsPreserved() {
+        int messages = 1000;
+        long interval = 10;
+        for (int i = 0; i < messages; i++) {
+            deliver(FLOODER, new IncomingSms("flooder", "message " + i, i * interval), i * interval);
+        }
+        if (due >= 0) {
+            render(limiter.takePending(FLOODER, due), due);
+        }
+
+        // every message is shown, either by its own render or counted in a merged one
+        int shown = 0;
+        for (IncomingSms sms : renders) {
+            shown += sms.messageCount;
+        }
+        assertEquals(messages, shown);
+        assertEquals("message " + (messages - 1), renders.get(renders.size() - 1).body);
+
+        // the burst, then about one render per refill over the 10 s flood
+        long duration = renderTimes.get(renderTimes.size() - 1);
+        long allowed = BURST + 1 + duration * PER_MINUTE / 60000;
+        assertTrue(renders.size() + " renders", renders.size() <= allowed);
+        assertTrue(renders.size() + " renders", renders.size() >= BURST + 1);
+
+        assertEquals(BURST, limiter.getAllowedCount());
+        assertEquals(messages - BURST, limiter.getSuppressedCount());
+        assertEquals(renders.size() - BURST, limiter.getMergedRenderCount());
+        for (int i = 1; i < renderTimes.size(); i++) {
+            assertTrue(renderTimes.get(i) >= renderTimes.get(i - 1));
+        }
+    }
+
+    @Test
+    public void otherSendersAreNotHeldBack() {
+        for (int i = 0; i < 100; i++) {
+            deliver(FLOODER, new IncomingSms("flooder", "spam", i), i);
+        }
+        deliver(FRIEND, new IncomingSms("friend", "hi", 100), 100);
+
+        IncomingSms last = renders.get(renders.size() - 1);
+        assertEquals("hi", last.body);
+        assertEquals(1, last.messageCount);
+    }
+
+    @Test
+    public void tokensRefillAfterQuietPeriod() {
+        for (int i = 0; i < BURST; i++) {
+            assertEquals(0, limiter.acquire(FLOODER, new IncomingSms("flooder", "m", 0), 0));
+        }
+        assertTrue(limiter.acquire(FLOODER, new IncomingSms("flooder", "held", 0), 0) > 0);
+        assertEquals(NotificationRateLimiter.ALREADY_PENDING,
+                limiter.acquire(FLOODER, new IncomingSms("flooder", "newer", 1), 1));
+
+        IncomingSms merged = limiter.takePending(FLOODER, 5000);
+        assertEquals("newer", merged.body);
+        assertEquals(2, merged.messageCount);
+        assertNull(limiter.takePending(FLOODER, 5001));
+
+        // a minute later the whole burst is back
+        for (int i = 0; i < BURST; i++) {
+            assertEquals(0, limiter.acquire(FLOODER, new IncomingSms("flooder", "m", 65000), 65000));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroPerMinuteIsRejected() {
+        new NotificationRateLimiter(0, BURST);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroBurstIsRejected() {
+        new NotificationRateLimiter(PER_MINUTE, 0);
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.messageme;
+
+import com.github.messageme.interfaces.Clock;
+import com.github.messageme.interfaces.ContactLookup;
+import com.github.messageme.interfaces.DelayScheduler;
+import com.github.messageme.interfaces.Notifier;
+import com.github.messageme.interfaces.PduDecoder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationSchedulerTest {
+    private static final String ALICE = "+12125550111";
+    private static final String BOB = "+12125550122";
+    private static final String CAROL = "+12125550133";
+
+    private final HashMap<String, String> names = new HashMap<String, String>();
+    private final List<EnrichedSms> posted = new ArrayList<EnrichedSms>();
+    private final List<List<EnrichedSms>> summaries = new ArrayList<List<EnrichedSms>>();
+    private final List<Runnable> frames = new ArrayList<Runnable>();
+
+    private UnreadMirror mirror;
+    private ConcurrentNotificationIdManager idManager;
+    private NotificationScheduler scheduler;
+    private ReceivePipeline pipeline;
+
+    @Before
+    public void setUp() {
+        PhoneNumberNormalizer normalizer = new PhoneNumberNormalizer("1", 10, "1", "011");
+        mirror = new UnreadMirror(new InMemorySmsStore(normalizer), 10, 10000);
+        idManager = new ConcurrentNotificationIdManager(normalizer);
+
+        Notifier notifier = new Notifier() {
+            @Override
+            public void post(EnrichedSms enriched) {
+                posted.add(enriched);
+            }
+
+            @Override
+            public void postSummary(List<EnrichedSms> newestFirst) {
+                summaries.add(newestFirst);
+            }
+
+            @Override
+            public void cancel(int notificationId) {
+            }
+
+            @Override
+            public void cancelSummary() {
+            }
+        };
+        DelayScheduler manual = new DelayScheduler() {
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                frames.add(task);
+            }
+        };
+        Executor sameThread = new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                task.run();
+            }
+        };
+        Clock clock = new Clock() {
+            @Override
+            public long now() {
+                return 0;
+            }
+        };
+        ContactLookup contacts = new ContactLookup() {
+            @Override
+            public Contact lookup(String phoneNumber) {
+                String name = names.get(phoneNumber);
+                return name == null ? null : new Contact(phoneNumber, name, 0, 0, 0);
+            }
+        };
+        PduDecoder unused = new PduDecoder() {
+            @Override
+            public IncomingSms decode(byte[] pdu, long receivedAt) {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        scheduler = new NotificationScheduler(notifier, idManager, manual, 100, 1);
+        pipeline = new ReceivePipeline(sameThread, sameThread, manual, clock, 8000, unused, contacts, mirror,
+                idManager, new NotificationRateLimiter(12, 3), normalizer, scheduler);
+
+        names.put(ALICE, "Alice");
+        names.put(BOB, "Bob");
+        names.put(CAROL, "Carol");
+    }
+
+    private EnrichedSms receive(String phoneNumber, String body) {
+        IncomingSms sms = new IncomingSms(phoneNumber, body, 0);
+        return new EnrichedSms(sms, names.get(phoneNumber), 0, 0, 0, mirror.receive(sms, 0),
+                idManager.getId(phoneNumber));
+    }
+
+    private void runFrames() {
+        List<Runnable> due = new ArrayList<Runnable>(frames);
+        frames.clear();
+        for (Runnable frame : due) {
+            frame.run();
+        }
+    }
+
+    @Test
+    public void splittingTheSummaryReenrichesContacts() {
+        scheduler.submit(pipeline, receive(ALICE, "hi"));
+        scheduler.submit(pipeline, receive(BOB, "yo"));
+        runFrames();
+        assertEquals(1, summaries.size());
+        assertTrue(posted.isEmpty());
+
+        // while the summary stands in, Alice writes again, is renamed, and "hi" is read elsewhere
+        scheduler.submit(pipeline, receive(ALICE, "you there?"));
+        runFrames();
+        names.put(ALICE, "Alice Smith");
+        mirror.markRead(ALICE, 0);
+        mirror.receive(new IncomingSms(ALICE, "you there?", 0), 0);
+
+        idManager.removeNotificationPhoneNumber(BOB);
+        scheduler.refresh();
+        runFrames();
+
+        assertEquals(1, posted.size());
+        EnrichedSms alice = posted.get(0);
+        assertEquals(ALICE, alice.sms.phoneNumber);
+        assertEquals("you there?", alice.sms.body);
+        assertEquals("Alice Smith", alice.contactName);
+        assertEquals(0, alice.unread.count);
+    }
+
+    @Test
+    public void updateIsNotPostedUnderAnIdGivenToSomeoneElse() {
+        EnrichedSms alice = receive(ALICE, "hi");
+        scheduler.submit(pipeline, alice);
+
+        // Alice's notification is dismissed before the frame, and Carol gets her ID
+        idManager.removeNotificationPhoneNumber(ALICE);
+        assertEquals(alice.notificationId, idManager.getId(CAROL));
+        runFrames();
+
+        assertTrue(posted.isEmpty());
+        assertEquals(Collections.<List<EnrichedSms>>emptyList(), summaries);
+    }
+}
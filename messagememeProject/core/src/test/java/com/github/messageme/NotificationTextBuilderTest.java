@@ -0,0 +1,116 @@
+package com.github.messageme;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationTextBuilderTest {
+    private static final String SEPARATOR = " | ";
+
+    private final NotificationTextBuilder builder = new NotificationTextBuilder(SEPARATOR, 20);
+
+    private static UnreadPreview unread(int count, String... newestFirst) {
+        return new UnreadPreview(count, Arrays.asList(newestFirst));
+    }
+
+    private static String build(NotificationTextBuilder builder, UnreadPreview unread, String message) {
+        return builder.build(unread, message).toString();
+    }
+
+    @Test
+    public void everythingFitsWithoutCount() {
+        assertEquals("a | b | new", build(builder, unread(2, "b", "a"), "new"));
+    }
+
+    @Test
+    public void noUnreadMessages() {
+        assertEquals("new", build(builder, unread(0), "new"));
+    }
+
+    @Test
+    public void exactlyMaxLengthFits() {
+        assertEquals("abcdefghijklmn | new", build(builder, unread(1, "abcdefghijklmn"), "new"));
+    }
+
+    @Test
+    public void oneOverMaxLengthCutsOldestText() {
+        // no space to cut at, so the body is cut mid-word
+        assertEquals("(2) ... jklmno | new", build(builder, unread(1, "abcdefghijklmno"), "new"));
+    }
+
+    @Test
+    public void cutBodyStartsAtAWord() {
+        assertEquals("(2) ... fox | ok", build(builder, unread(1, "the quick brown fox"), "ok"));
+    }
+
+    @Test
+    public void incompletePreviewShowsCount() {
+        assertEquals("(6) ... a | b | new", build(builder, unread(5, "b", "a"), "new"));
+    }
+
+    @Test
+    public void longMessageKeepsItsBeginning() {
+        assertEquals("hello there ... (1)", build(builder, unread(0), "hello there my good friend"));
+    }
+
+    @Test
+    public void longMessageWithoutSpaces() {
+        assertEquals("xxxxxxxxxxxx ... (3)", build(builder, unread(2, "a", "b"), "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxx"));
+    }
+
+    @Test
+    public void countThatDoesNotFitIsDropped() {
+        assertEquals("abcdefghijklmno", build(builder, unread(1), "abcdefghijklmno"));
+    }
+
+    @Test
+    public void nullBodiesCountAsEmpty() {
+        assertEquals("", build(builder, unread(0), null));
+        assertEquals("a |  | new", build(builder, new UnreadPreview(2, Arrays.asList(null, "a")), "new"));
+    }
+
+    @Test
+    public void maxLengthShorterThanSuffix() {
+        assertEquals("hello", build(new NotificationTextBuilder(SEPARATOR, 5), unread(0), "hello world"));
+        assertEquals("", build(new NotificationTextBuilder(SEPARATOR, 0), unread(3, "a"), "hello"));
+    }
+
+    @Test
+    public void neverLongerThanMaxLength() {
+        Random random = new Random(1);
+        for (int maxLength = 0; maxLength <= 40; maxLength++) {
+            NotificationTextBuilder limited = new NotificationTextBuilder(SEPARATOR, maxLength);
+            for (int i = 0; i < 200; i++) {
+                List<String> bodies = new ArrayList<String>();
+                int known = random.nextInt(5);
+                for (int b = 0; b < known; b++) {
+                    bodies.add(words(random));
+                }
+                UnreadPreview unread = new UnreadPreview(known + random.nextInt(3), Collections.unmodifiableList(bodies));
+                String text = build(limited, unread, words(random));
+                assertTrue(maxLength + ": " + text, text.length() <= maxLength);
+            }
+        }
+    }
+
+    private static String words(Random random) {
+        StringBuilder words = new StringBuilder();
+        int count = random.nextInt(6);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                words.append(' ');
+            }
+            for (int c = random.nextInt(8); c >= 0; c--) {
+                words.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return words.toString();
+    }
+}
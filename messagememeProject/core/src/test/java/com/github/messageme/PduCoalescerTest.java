@@ -0,0 +1,201 @@
+package com.github.messageme;
+
+import com.github.messageme.interfaces.Clock;
+import com.github.messageme.interfaces.ContactLookup;
+import com.github.messageme.interfaces.DelayScheduler;
+import com.github.messageme.interfaces.NotificationIdManager;
+import com.github.messageme.interfaces.Notifier;
+import com.github.messageme.interfaces.PduDecoder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class PduCoalescerTest {
+    private static final String SEPARATOR = "   ";
+    private static final String ALICE = "+12125550111";
+    private static final String BOB = "+12125550122";
+
+    /**
+     * Build the header of a GSM SMS-DELIVER PDU; the coalescer only reads the
+     * concatenation header, the text comes from the decoded message.
+     * @param reference concatenation reference, or -1 for a single-part message
+     */
+    private static byte[] pdu(int reference, int parts, int sequence) {
+        boolean concat = reference >= 0;
+        byte[] pdu = new byte[concat ? 26 : 20];
+        int i = 0;
+        pdu[i++] = 0; // no SMSC address
+        pdu[i++] = (byte) (0x04 | (concat ? 0x40 : 0)); // SMS-DELIVER, UDHI
+        pdu[i++] = 11; // address digits
+        pdu[i++] = (byte) 0x91;
+        i += 6; // address semi-octets
+        i += 1 + 1 + 7; // protocol identifier, data coding scheme, timestamp
+        pdu[i++] = 0; // user data length, unused
+        if (concat) {
+            pdu[i++] = 5;
+            pdu[i++] = 0x00;
+            pdu[i++] = 3;
+            pdu[i++] = (byte) reference;
+            pdu[i++] = (byte) parts;
+            pdu[i] = (byte) sequence;
+        }
+        return pdu;
+    }
+
+    @Test
+    public void parsesConcatenationHeader() {
+        assertArrayEquals(new int[] { 42, 3 }, PduCoalescer.parseConcat(pdu(42, 5, 3)));
+        assertNull(PduCoalescer.parseConcat(pdu(-1, 1, 1)));
+        assertNull(PduCoalescer.parseConcat(new byte[] { 7, 1, 2 }));
+    }
+
+    @Test
+    public void reassemblesPartsOutOfOrder() {
+        PduCoalescer coalescer = new PduCoalescer(SEPARATOR);
+        coalescer.add(ALICE, "three", pdu(7, 3, 3));
+        coalescer.add(ALICE, "one ", pdu(7, 3, 1));
+        coalescer.add(ALICE, "two ", pdu(7, 3, 2));
+
+        assertEquals(3, coalescer.getPartCount());
+        Map<String, String> messages = coalescer.getMessages();
+        assertEquals(1, messages.size());
+        assertEquals("one two three", messages.get(ALICE));
+    }
+
+    @Test
+    public void groupsInterleavedSenders() {
+        PduCoalescer coalescer = new PduCoalescer(SEPARATOR);
+        coalescer.add(ALICE, "a1", pdu(1, 2, 1));
+        coalescer.add(BOB, "b1", pdu(1, 2, 1));
+        coalescer.add(BOB, "b2", pdu(1, 2, 2));
+        coalescer.add(ALICE, "a2", pdu(1, 2, 2));
+
+        Map<String, String> messages = coalescer.getMessages();
+        assertEquals(2, messages.size());
+        assertEquals("a1a2", messages.get(ALICE));
+        assertEquals("b1b2", messages.get(BOB));
+    }
+
+    @Test
+    public void separateMessagesFromOneSenderAreJoined() {
+        PduCoalescer coalescer = new PduCoalescer(SEPARATOR);
+        coalescer.add(ALICE, "first", pdu(-1, 1, 1));
+        coalescer.add(ALICE, "second ", pdu(9, 2, 1));
+        coalescer.add(ALICE, "third", pdu(-1, 1, 1));
+        coalescer.add(ALICE, "half", pdu(9, 2, 2));
+
+        assertEquals("first" + SEPARATOR + "second half" + SEPARATOR + "third", coalescer.getMessages().get(ALICE));
+    }
+
+    /**
+     * Each coalesced message is enriched and rendered once: one contact lookup, one unread
+     * query and one post per sender, where handling each PDU on its own cost one per part.
+     */
+    @Test
+    public void multipartMessageIsLookedUpAndPostedOnce() {
+        int parts = 6;
+        final IdentityHashMap<byte[], IncomingSms> decoded = new IdentityHashMap<byte[], IncomingSms>();
+        List<byte[]> pdus = new ArrayList<byte[]>();
+        for (int i = 1; i <= parts; i++) {
+            byte[] pdu = pdu(200, parts, i);
+            decoded.put(pdu, new IncomingSms(ALICE, "part" + i + " ", 0));
+            pdus.add(pdu);
+        }
+        byte[] single = pdu(-1, 1, 1);
+        decoded.put(single, new IncomingSms(BOB, "hi", 0));
+        pdus.add(3, single);
+
+        PduDecoder decoder = new PduDecoder() {
+            @Override
+            public IncomingSms decode(byte[] pdu, long receivedAt) {
+                return decoded.get(pdu);
+            }
+        };
+        final AtomicInteger lookups = new AtomicInteger();
+        ContactLookup contacts = new ContactLookup() {
+            @Override
+            public Contact lookup(String phoneNumber) {
+                lookups.incrementAndGet();
+                return new Contact(phoneNumber, phoneNumber, 0, 0, 0);
+            }
+        };
+        final List<EnrichedSms> posted = new ArrayList<EnrichedSms>();
+        Notifier notifier = new Notifier() {
+            @Override
+            public void post(EnrichedSms enriched) {
+                posted.add(enriched);
+            }
+
+            @Override
+            public void postSummary(List<EnrichedSms> newestFirst) {
+                fail("two senders shouldn't get a summary");
+            }
+
+            @Override
+            public void cancel(int notificationId) {
+            }
+
+            @Override
+            public void cancelSummary() {
+            }
+        };
+        final List<Runnable> timers = new ArrayList<Runnable>();
+        DelayScheduler delayScheduler = new DelayScheduler() {
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                timers.add(task);
+            }
+        };
+        Executor sameThread = new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                task.run();
+            }
+        };
+        Clock clock = new Clock() {
+            @Override
+            public long now() {
+                return 0;
+            }
+        };
+
+        PhoneNumberNormalizer normalizer = new PhoneNumberNormalizer("1", 10, "1", "011");
+        InMemorySmsStore store = new InMemorySmsStore(normalizer);
+        NotificationIdManager idManager = new ConcurrentNotificationIdManager(normalizer);
+        NotificationScheduler scheduler = new NotificationScheduler(notifier, idManager, delayScheduler, 100, 4);
+        ReceivePipeline pipeline = new ReceivePipeline(sameThread, sameThread, delayScheduler, clock, 8000,
+                decoder, contacts, new UnreadMirror(store, 10, 10000), idManager,
+                new NotificationRateLimiter(12, 3), normalizer, scheduler);
+
+        final AtomicInteger finished = new AtomicInteger();
+        pipeline.submit(pdus, 0, new Runnable() {
+            @Override
+            public void run() {
+                finished.incrementAndGet();
+            }
+        });
+        for (int i = 0; i < timers.size(); i++) {
+            timers.get(i).run();
+        }
+
+        assertEquals(1, finished.get());
+        assertEquals(2, lookups.get());
+        assertEquals(2, store.getQueryCount());
+        assertEquals(2, posted.size());
+        assertEquals(ALICE, posted.get(0).sms.phoneNumber);
+        assertEquals("part1 part2 part3 part4 part5 part6 ", posted.get(0).sms.body);
+        assertEquals(BOB, posted.get(1).sms.phoneNumber);
+        assertEquals("hi", posted.get(1).sms.body);
+    }
+}
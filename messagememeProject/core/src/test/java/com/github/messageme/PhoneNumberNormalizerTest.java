@@ -0,0 +1,51 @@
+package com.github.messageme;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PhoneNumberNormalizerTest {
+    private final PhoneNumberNormalizer normalizer = new PhoneNumberNormalizer("1", 10, "1", "011");
+
+    @Test
+    public void spellingsOfOneNumberShareAKey() {
+        long key = normalizer.getKey("+12125550111");
+        assertTrue(normalizer.equals("+12125550111", "(212) 555-0111"));
+        assertEquals(key, normalizer.getKey("1 212 555 0111"));
+        assertEquals(key, normalizer.getKey("011 1 212 555 0111"));
+        assertEquals("12125550111", normalizer.getCanonical("(212) 555-0111"));
+    }
+
+    @Test
+    public void shortCodesKeepLeadingZeros() {
+        assertFalse(normalizer.getKey("0123") == normalizer.getKey("123"));
+    }
+
+    @Test
+    public void alphanumericSendersGetTheirOwnKeys() {
+        long google = normalizer.getKey("GOOGLE");
+        assertTrue(google < 0);
+        assertEquals(google, normalizer.getKey("Google"));
+        assertFalse(google == normalizer.getKey("AMAZON"));
+    }
+
+    @Test
+    public void addressesWithoutDigitsGetTheirOwnKeys() {
+        long stars = normalizer.getKey("***");
+        long hashes = normalizer.getKey("###");
+        assertTrue(stars != PhoneNumberNormalizer.NO_KEY);
+        assertTrue(hashes != PhoneNumberNormalizer.NO_KEY);
+        assertFalse(stars == hashes);
+        assertEquals("***", normalizer.getCanonical("***"));
+    }
+
+    @Test
+    public void blankAddressesHaveNoKey() {
+        assertEquals(PhoneNumberNormalizer.NO_KEY, normalizer.getKey(null));
+        assertEquals(PhoneNumberNormalizer.NO_KEY, normalizer.getKey(""));
+        assertEquals(PhoneNumberNormalizer.NO_KEY, normalizer.getKey("   "));
+        assertFalse(normalizer.equals("", ""));
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.messageme;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ThreadIdCacheTest {
+    private static final String ALICE = "+12125550111";
+    private static final String ALICE_LOCAL = "(212) 555-0111";
+    private static final String STRANGER = "+12125550199";
+
+    private InMemorySmsStore store;
+    private ThreadIdCache threadIds;
+
+    @Before
+    public void setUp() {
+        store = new InMemorySmsStore(new PhoneNumberNormalizer("1", 10, "1", "011"));
+        store.deliver(ALICE, "hi", 1, false);
+        threadIds = new ThreadIdCache(store, store.getNormalizer());
+    }
+
+    @Test
+    public void lookupIsCachedAcrossSpellings() {
+        long threadId = threadIds.getThreadId(ALICE);
+        assertEquals(1, store.getQueryCount());
+
+        assertEquals(threadId, threadIds.getThreadId(ALICE_LOCAL));
+        assertEquals(1, store.getQueryCount());
+    }
+
+    @Test
+    public void readLookupDoesNotCreateThread() {
+        assertEquals(ThreadIdCache.NO_THREAD, threadIds.getThreadId(STRANGER));
+        assertEquals(1, store.getThreadCount());
+        assertEquals(0, threadIds.size());
+    }
+
+    @Test
+    public void writeLookupCreatesThread() {
+        long threadId = threadIds.getOrCreateThreadId(STRANGER);
+        assertEquals(2, store.getThreadCount());
+        assertEquals(threadId, threadIds.getThreadId(STRANGER));
+    }
+
+    @Test
+    public void invalidatedEntryIsLookedUpAgain() {
+        threadIds.getThreadId(ALICE);
+        threadIds.invalidate(ALICE_LOCAL);
+        threadIds.getThreadId(ALICE);
+        assertEquals(2, store.getQueryCount());
+    }
+}
@@ -0,0 +1,126 @@
+package com.github.messageme;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class UnreadMirrorTest {
+    private static final String ALICE = "+12125550111";
+    private static final String ALICE_LOCAL = "(212) 555-0111";
+    private static final long GRACE = 10000;
+
+    private InMemorySmsStore store;
+    private UnreadMirror mirror;
+
+    @Before
+    public void setUp() {
+        store = new InMemorySmsStore(new PhoneNumberNormalizer("1", 10, "1", "011"));
+        store.deliver(ALICE, "one", 1, false);
+        store.deliver(ALICE, "two", 2, false);
+        mirror = new UnreadMirror(store, 3, GRACE);
+    }
+
+    private LongIntMap countsFor(String phoneNumber, int count) {
+        LongIntMap counts = new LongIntMap(4);
+        counts.put(store.getNormalizer().getKey(phoneNumber), count);
+        return counts;
+    }
+
+    private void assertPreview(int count, UnreadPreview preview, String... newestFirst) {
+        assertEquals(count, preview.count);
+        assertEquals(Arrays.asList(newestFirst), preview.newestFirst);
+    }
+
+    @Test
+    public void loadsSenderOnceThenReadsMemory() {
+        assertPreview(2, mirror.receive(new IncomingSms(ALICE_LOCAL, "three", 100), 100), "two", "one");
+
+        long queries = store.getQueryCount();
+        assertPreview(3, mirror.receive(new IncomingSms(ALICE, "four", 200), 200), "three", "two", "one");
+        assertEquals(queries, store.getQueryCount());
+    }
+
+    @Test
+    public void reconcileWithNothingMirroredDoesNotQuery() {
+        assertEquals(0, mirror.reconcile(100000));
+        assertEquals(0, store.getQueryCount());
+    }
+
+    @Test
+    public void laggingStoreIsIgnoredWithinGrace() {
+        mirror.receive(new IncomingSms(ALICE, "three", 100), 100);
+
+        // the provider hasn't written "three" yet
+        assertEquals(0, mirror.applyCounts(Collections.singleton(ALICE), countsFor(ALICE, 2), 100 + GRACE - 1));
+        assertEquals(0, mirror.reconcile(100 + GRACE - 1));
+        assertPreview(3, mirror.receive(new IncomingSms(ALICE, "four", 200), 200), "three", "two", "one");
+    }
+
+    @Test
+    public void readsElsewhereAreCorrectedAfterGrace() {
+        mirror.receive(new IncomingSms(ALICE, "three", 100), 100);
+        mirror.receive(new IncomingSms(ALICE, "four", 200), 200);
+
+        // two of the four were read in another app
+        assertEquals(1, mirror.applyCounts(Collections.singleton(ALICE), countsFor(ALICE, 2), 200 + GRACE));
+        assertPreview(2, mirror.receive(new IncomingSms(ALICE, "five", 300), 300), "four", "three");
+    }
+
+    @Test
+    public void storeAheadOfMirrorReloadsSender() {
+        mirror.receive(new IncomingSms(ALICE, "three", 100), 100);
+        store.deliver(ALICE, "three", 3, false);
+        store.deliver(ALICE, "four", 4, false);
+
+        assertEquals(1, mirror.reconcile(100 + GRACE));
+        assertEquals(0, mirror.size());
+        assertPreview(4, mirror.receive(new IncomingSms(ALICE, "five", 200 + GRACE), 200 + GRACE),
+                "four", "three", "two");
+    }
+
+    @Test
+    public void markReadIsNotUndoneByLaggingStore() {
+        mirror.receive(new IncomingSms(ALICE, "three", 100), 100);
+        mirror.markRead(ALICE_LOCAL, 1000);
+
+        // the read write is still batched
+        assertEquals(0, mirror.reconcile(1000 + GRACE - 1));
+        assertPreview(0, mirror.receive(new IncomingSms(ALICE, "four", 2000), 2000));
+    }
+
+    @Test
+    public void readWithinGraceIsDroppedOnDismissal() {
+        mirror.receive(new IncomingSms(ALICE, "three", 100), 100);
+
+        // read in another app before the grace period is over, so the counts don't correct it...
+        store.markRead(ALICE);
+        assertEquals(0, mirror.applyCounts(Collections.singleton(ALICE), countsFor(ALICE, 0), 200));
+
+        // ...but the notification is dismissed, which drops the sender
+        mirror.forget(ALICE_LOCAL);
+        assertPreview(0, mirror.receive(new IncomingSms(ALICE, "four", 300), 300));
+    }
+
+    @Test
+    public void mergedUpdateShowsEveryHeldBody() {
+        mirror.receive(new IncomingSms(ALICE, "three", 100), 100);
+        mirror.hold(new IncomingSms(ALICE, "four", 200), 200);
+        mirror.hold(new IncomingSms(ALICE, "five", 300), 300);
+
+        UnreadPreview preview = mirror.getHeldPreview(new IncomingSms(ALICE, "five", 300).withMessageCount(2));
+        assertPreview(4, preview, "four", "three", "two");
+        assertEquals(0, store.getWriteCount());
+    }
+
+    @Test
+    public void keepsOnlyNewestBodies() {
+        for (int i = 0; i < 10; i++) {
+            mirror.receive(new IncomingSms(ALICE, "m" + i, i), i);
+        }
+        assertPreview(12, mirror.receive(new IncomingSms(ALICE, "last", 10), 10), "m9", "m8", "m7");
+    }
+}
@@ -0,0 +1,30 @@
+package com.github.messageme;
+
+import android.os.Process;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes named threads that run at background priority, so work off the
+ * main thread doesn't compete with the UI.
+ */
+class BackgroundThreadFactory implements ThreadFactory {
+    private final String name;
+    private final AtomicInteger count = new AtomicInteger(1);
+
+    BackgroundThreadFactory(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public Thread newThread(final Runnable r) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }
+        }, name + " #" + count.getAndIncrement());
+    }
+}
@@ -0,0 +1,376 @@
+package com.github.messageme;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.telephony.PhoneNumberUtils;
+import android.util.Log;
+
+import com.github.messageme.interfaces.ContactLookup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In-memory index from phone number to contact, so that incoming messages
+ * don't need PhoneLookup queries.
+ *
+ * All phone numbers are loaded with a single query on first use.  After that
+ * a ContentObserver on Contacts triggers a reload in the background.  On
+ * Jelly Bean MR2 and above the reload only fetches contacts updated or deleted
+ * since the last load; on older versions it reloads everything.  Reloads
+ * build the new entries before swapping them in, so a lookup during a
+ * reload sees either the old or the new numbers, never neither.
+ *
+ * Numbers are keyed on their last {@link #MIN_MATCH} digits, like PhoneLookup,
+ * and candidates sharing a key are told apart with PhoneNumberUtils.compare.
+ *
+ * Lookups wait a bounded time for the first load.  If it hasn't finished, or
+ * it failed, the sender is treated as not being a contact, as when every
+ * message did its own PhoneLookup and the query failed.
+ */
+public class ContactIndex implements ContactLookup {
+    private static final String TAG = "ContactIndex";
+
+    /** Number of trailing digits used as the lookup key */
+    static final int MIN_MATCH = 7;
+
+    private static final String[] PHONE_PROJECTION = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+            ? new String[] { Phone.NUMBER, Phone.CONTACT_ID, Phone.DISPLAY_NAME, Phone.PHOTO_ID, Phone.CONTACT_LAST_UPDATED_TIMESTAMP }
+            : new String[] { Phone.NUMBER, Phone.CONTACT_ID, Phone.DISPLAY_NAME, Phone.PHOTO_ID };
+
+    private final ContentResolver cr;
+    private final long loadWaitMillis;
+
+    /** lookup key to the contacts whose numbers share it; arrays are replaced, never modified */
+    private final ConcurrentHashMap<String, Contact[]> byKey = new ConcurrentHashMap<String, Contact[]>();
+
+    /** contact ID to its indexed numbers, for delta removal.  Only touched on the reload thread. */
+    private final HashMap<Long, List<Contact>> byContactId = new HashMap<Long, List<Contact>>();
+
+    private final ExecutorService reloadExecutor =
+            Executors.newSingleThreadExecutor(new BackgroundThreadFactory("ContactIndex"));
+    private final AtomicBoolean reloadQueued = new AtomicBoolean(false);
+    private final CountDownLatch loaded = new CountDownLatch(1);
+
+    /** System.currentTimeMillis() at the start of the last successful load.  Only touched on the reload thread. */
+    private long watermark = 0;
+
+    /** whether a full load has succeeded, so a missing number really isn't a contact */
+    private volatile boolean indexed = false;
+
+    /**
+     * @param loadWaitMillis longest a lookup waits for the first load before giving up
+     */
+    ContactIndex(ContentResolver resolver, long loadWaitMillis) {
+        cr = resolver;
+        this.loadWaitMillis = loadWaitMillis;
+    }
+
+    void start() {
+        cr.registerContentObserver(ContactsContract.Contacts.CONTENT_URI, true, new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                scheduleReload();
+            }
+        });
+        scheduleReload();
+    }
+
+    /**
+     * Find the contact with this phone number.  Waits up to loadWaitMillis for the initial load.
+     * @param phoneNumber phone number (not normalized)
+     * @return the contact, or null if the number doesn't belong to a contact or the contacts
+     * couldn't be loaded
+     */
+    @Override
+    public Contact lookup(String phoneNumber) {
+        String key = lookupKey(phoneNumber);
+        if (key == null) {
+            return null;
+        }
+
+        try {
+            if (!loaded.await(loadWaitMillis, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Contacts not loaded after " + loadWaitMillis + " ms, not looking up " + phoneNumber);
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        if (!indexed) {
+            // the load failed; a later change to the contacts retries it
+            Log.w(TAG, "Contacts couldn't be loaded, not looking up " + phoneNumber);
+            return null;
+        }
+
+        Contact[] candidates = byKey.get(key);
+        if (candidates == null) {
+            return null;
+        }
+
+        for (Contact candidate : candidates) {
+            if (PhoneNumberUtils.compare(candidate.phoneNumber, phoneNumber)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queue a reload unless one is already waiting to run.
+     */
+    void scheduleReload() {
+        if (!reloadQueued.compareAndSet(false, true)) {
+            return;
+        }
+
+        reloadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                reloadQueued.set(false);
+                try {
+                    reload();
+                } catch (Exception e) {
+                    Log.e(TAG, "Error in loading contacts", e);
+                }
+                finally {
+                    loaded.countDown();
+                }
+            }
+        });
+    }
+
+    private void reload() {
+        long start = System.currentTimeMillis();
+
+        boolean succeeded;
+        if (watermark == 0 || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            succeeded = fullReload();
+            if (succeeded) {
+                indexed = true;
+            }
+        }
+        else {
+            succeeded = deltaReload();
+        }
+
+        // a failed load leaves the watermark alone, so the next one covers what it missed
+        if (succeeded) {
+            watermark = start;
+        }
+    }
+
+    /**
+     * @return false if the contacts couldn't be queried
+     */
+    private boolean fullReload() {
+        Metrics.count(Metrics.PROVIDER_QUERIES);
+        Cursor cursor = cr.query(Phone.CONTENT_URI, PHONE_PROJECTION, null, null, null);
+        if (cursor == null) {
+            Log.w(TAG, "fullReload: contacts query failed");
+            return false;
+        }
+
+        HashMap<String, ArrayList<Contact>> freshByKey = new HashMap<String, ArrayList<Contact>>();
+        HashMap<Long, List<Contact>> freshByContactId = new HashMap<Long, List<Contact>>();
+        try {
+            readPhones(cursor, freshByKey, freshByContactId);
+        }
+        finally {
+            cursor.close();
+        }
+
+        for (String key : freshByKey.keySet()) {
+            ArrayList<Contact> candidates = freshByKey.get(key);
+            byKey.put(key, candidates.toArray(new Contact[candidates.size()]));
+        }
+        byKey.keySet().retainAll(freshByKey.keySet());
+
+        byContactId.clear();
+        byContactId.putAll(freshByContactId);
+        Log.v(TAG, "fullReload: " + byContactId.size() + " contacts, " + byKey.size() + " keys");
+        return true;
+    }
+
+    /**
+     * Re-read the contacts changed or deleted since the last load.  Each of them loses
+     * its indexed numbers, even one with no numbers left, and gets back the ones it has now.
+     * @return false if the changes couldn't be queried
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private boolean deltaReload() {
+        String[] since = new String[] { Long.toString(watermark) };
+        HashSet<Long> changedContacts = new HashSet<Long>();
+
+        if (!readContactIds(ContactsContract.DeletedContacts.CONTENT_URI,
+                ContactsContract.DeletedContacts.CONTACT_ID,
+                ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP + " > ?", since, changedContacts)) {
+            Log.w(TAG, "deltaReload: deleted contacts query failed");
+            return false;
+        }
+
+        // from Contacts rather than Phone, so a contact whose last number was removed is included
+        if (!readContactIds(ContactsContract.Contacts.CONTENT_URI, ContactsContract.Contacts._ID,
+                ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?", since, changedContacts)) {
+            Log.w(TAG, "deltaReload: updated contacts query failed");
+            return false;
+        }
+
+        Metrics.count(Metrics.PROVIDER_QUERIES);
+        Cursor updated = cr.query(Phone.CONTENT_URI, PHONE_PROJECTION,
+                Phone.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?", since, null);
+        if (updated == null) {
+            Log.w(TAG, "deltaReload: updated numbers query failed");
+            return false;
+        }
+
+        HashMap<String, ArrayList<Contact>> freshByKey = new HashMap<String, ArrayList<Contact>>();
+        HashMap<Long, List<Contact>> freshByContactId = new HashMap<Long, List<Contact>>();
+        try {
+            readPhones(updated, freshByKey, freshByContactId);
+        }
+        finally {
+            updated.close();
+        }
+        changedContacts.addAll(freshByContactId.keySet());
+
+        // every key a changed contact had or has now
+        HashSet<String> keys = new HashSet<String>(freshByKey.keySet());
+        for (Long contactId : changedContacts) {
+            List<Contact> numbers = byContactId.get(contactId);
+            if (numbers != null) {
+                for (Contact contact : numbers) {
+                    keys.add(lookupKey(contact.phoneNumber));
+                }
+            }
+        }
+
+        // build each key's replacement before swapping it in
+        for (String key : keys) {
+            ArrayList<Contact> candidates = new ArrayList<Contact>();
+            Contact[] existing = byKey.get(key);
+            if (existing != null) {
+                for (Contact contact : existing) {
+                    // numbers of other contacts that share the key stay
+                    if (!changedContacts.contains(contact.contactId)) {
+                        candidates.add(contact);
+                    }
+                }
+            }
+            ArrayList<Contact> fresh = freshByKey.get(key);
+            if (fresh != null) {
+                candidates.addAll(fresh);
+            }
+
+            if (candidates.isEmpty()) {
+                byKey.remove(key);
+            }
+            else {
+                byKey.put(key, candidates.toArray(new Contact[candidates.size()]));
+            }
+        }
+
+        byContactId.keySet().removeAll(changedContacts);
+        byContactId.putAll(freshByContactId);
+        Log.v(TAG, "deltaReload: " + changedContacts.size() + " contacts changed");
+        return true;
+    }
+
+    /**
+     * Add the contact IDs a query returns to a set.
+     * @param column the column holding the contact ID
+     * @return false if the query failed
+     */
+    private boolean readContactIds(Uri uri, String column, String selection, String[] selectionArgs,
+                                   HashSet<Long> contactIds) {
+        Metrics.count(Metrics.PROVIDER_QUERIES);
+        Cursor cursor = cr.query(uri, new String[] { column }, selection, selectionArgs, null);
+        if (cursor == null) {
+            return false;
+        }
+
+        try {
+            while (cursor.moveToNext()) {
+                contactIds.add(cursor.getLong(0));
+            }
+        }
+        finally {
+            cursor.close();
+        }
+        return true;
+    }
+
+    /**
+     * Read every row of a cursor using PHONE_PROJECTION into new index entries.
+     * @param byKeyOut collects the numbers by lookup key
+     * @param byContactIdOut collects the numbers by contact ID
+     */
+    private static void readPhones(Cursor cursor, HashMap<String, ArrayList<Contact>> byKeyOut,
+                                   HashMap<Long, List<Contact>> byContactIdOut) {
+        while (cursor.moveToNext()) {
+            String number = cursor.getString(0);
+            String key = lookupKey(number);
+            if (key == null) {
+                continue;
+            }
+
+            long version = cursor.getColumnCount() > 4 ? cursor.getLong(4) : 0;
+            Contact contact = new Contact(number, cursor.getString(2), cursor.getLong(1), cursor.getLong(3), version);
+
+            List<Contact> numbers = byContactIdOut.get(contact.contactId);
+            if (numbers == null) {
+                numbers = new ArrayList<Contact>();
+                byContactIdOut.put(contact.contactId, numbers);
+            }
+            numbers.add(contact);
+
+            ArrayList<Contact> candidates = byKeyOut.get(key);
+            if (candidates == null) {
+                candidates = new ArrayList<Contact>();
+                byKeyOut.put(key, candidates);
+            }
+            candidates.add(contact);
+        }
+    }
+
+    /**
+     * The last MIN_MATCH digits of the number, or all of them if it's shorter.
+     * @return lookup key, or null if the number has no digits
+     */
+    static String lookupKey(String phoneNumber) {
+        if (phoneNumber == null) {
+            return null;
+        }
+
+        char[] digits = new char[MIN_MATCH];
+        int count = 0;
+        for (int i = phoneNumber.length() - 1; i >= 0 && count < MIN_MATCH; i--) {
+            char c = phoneNumber.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits[MIN_MATCH - 1 - count] = c;
+                count++;
+            }
+        }
+
+        if (count == 0) {
+            return null;
+        }
+        return new String(digits, MIN_MATCH - count, count);
+    }
+}
@@ -0,0 +1,320 @@
+package com.github.messageme;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.ContactsContract;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+
+/**
+ * Decodes contact photos at notification icon size and keeps them in a
+ * memory cache bounded by bytes.
+ *
+ * Photos are decoded bounds-first with inSampleSize so the full resolution
+ * image is never in memory, then center-cropped into an icon sized bitmap.
+ * Every cached bitmap has the same dimensions, so bitmaps evicted from the
+ * cache are kept and reused for later photos instead of allocating.
+ *
+ * Memory misses are read from a {@link ContactPhotoDiskCache} before falling
+ * back to decoding from the Contacts provider.
+ *
+ * Bitmaps come from {@link #acquire} and must be given back with {@link #release}
+ * once the notification is posted, so an evicted bitmap is never reused while
+ * it is still being rendered.
+ */
+public class ContactPhotoCache {
+    private static final String TAG = "ContactPhotoCache";
+
+    /** Most evicted bitmaps kept around for reuse */
+    private static final int MAX_REUSABLE = 4;
+
+    private final ContentResolver cr;
+    private final int targetWidth;
+    private final int targetHeight;
+    private final LruCache<String, Bitmap> cache;
+    private final ContactPhotoDiskCache diskCache;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /** reference counts for bitmaps handed out by acquire() */
+    private final IdentityHashMap<Bitmap, int[]> inUse = new IdentityHashMap<Bitmap, int[]>();
+
+    /** bitmaps that were evicted while in use, to be reused once released */
+    private final HashSet<Bitmap> evictedInUse = new HashSet<Bitmap>();
+
+    /** evicted, icon sized bitmaps ready to be drawn or decoded into */
+    private final ArrayDeque<Bitmap> reusable = new ArrayDeque<Bitmap>();
+
+    /** scratch bitmap for sampled decodes, reused via inBitmap on KitKat and above */
+    private Bitmap scratch;
+
+    /**
+     * @param targetWidth width of the decoded photos, in pixels
+     * @param targetHeight height of the decoded photos, in pixels
+     * @param maxBytes memory cache size
+     * @param diskCache disk tier for photos at the same target size
+     */
+    public ContactPhotoCache(ContentResolver resolver, int targetWidth, int targetHeight, int maxBytes,
+                             ContactPhotoDiskCache diskCache) {
+        cr = resolver;
+        this.diskCache = diskCache;
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+
+        cache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                synchronized (ContactPhotoCache.this) {
+                    if (inUse.containsKey(oldValue)) {
+                        evictedInUse.add(oldValue);
+                    }
+                    else {
+                        addReusable(oldValue);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Get the contact's photo at notification icon size, decoding it if it isn't cached.
+     * The caller must pass the result to {@link #release} when done with it.
+     *
+     * @param contactId contact ID, or 0 if unknown
+     * @param photoId ID of the contact's photo, or 0 if the contact has no photo
+     * @param version contact version, see {@link Contact#version}
+     * @return the photo, or null if there isn't one
+     */
+    public Bitmap acquire(long contactId, long photoId, long version) {
+        if (contactId == 0 || photoId == 0) {
+            return null;
+        }
+
+        String key = ContactPhotoDiskCache.key(contactId, photoId, version);
+        synchronized (this) {
+            Bitmap photo = cache.get(key);
+            if (photo != null) {
+                Metrics.count(Metrics.PHOTO_MEMORY_HIT);
+                retain(photo);
+                return photo;
+            }
+        }
+
+        Bitmap photo = readFromDisk(key);
+        if (photo != null) {
+            Metrics.count(Metrics.PHOTO_DISK_HIT);
+        }
+        else {
+            long start = Metrics.start();
+            photo = load(contactId);
+            if (photo == null) {
+                return null;
+            }
+            Metrics.end(Metrics.STAGE_PHOTO_DECODE, start);
+            Metrics.count(Metrics.PHOTO_DECODED);
+            diskCache.write(key, contactId, photo);
+        }
+
+        synchronized (this) {
+            cache.put(key, photo);
+            retain(photo);
+        }
+        return photo;
+    }
+
+    /**
+     * Give back a photo from {@link #acquire}.
+     * @param photo the photo, may be null
+     */
+    public synchronized void release(Bitmap photo) {
+        if (photo == null) {
+            return;
+        }
+
+        int[] count = inUse.get(photo);
+        if (count == null || --count[0] > 0) {
+            return;
+        }
+
+        inUse.remove(photo);
+        if (evictedInUse.remove(photo)) {
+            addReusable(photo);
+        }
+    }
+
+    private void retain(Bitmap photo) {
+        int[] count = inUse.get(photo);
+        if (count == null) {
+            inUse.put(photo, new int[] { 1 });
+        }
+        else {
+            count[0]++;
+        }
+    }
+
+    private void addReusable(Bitmap bitmap) {
+        if (reusable.size() < MAX_REUSABLE && bitmap.isMutable()) {
+            reusable.add(bitmap);
+        }
+    }
+
+    private synchronized Bitmap takeReusable() {
+        return reusable.poll();
+    }
+
+    private synchronized Bitmap takeScratch() {
+        Bitmap bitmap = scratch;
+        scratch = null;
+        return bitmap;
+    }
+
+    private synchronized void returnScratch(Bitmap bitmap) {
+        if (scratch == null || scratch.getByteCount() < bitmap.getByteCount()) {
+            scratch = bitmap;
+        }
+    }
+
+    private Bitmap readFromDisk(String key) {
+        if (!diskCache.contains(key)) {
+            return null;
+        }
+
+        Bitmap icon = takeReusable();
+        if (icon == null) {
+            icon = Bitmap.createBitmap(targetWidth, targetHeight, Bitmap.Config.ARGB_8888);
+        }
+
+        if (diskCache.read(key, icon)) {
+            return icon;
+        }
+
+        synchronized (this) {
+            addReusable(icon);
+        }
+        return null;
+    }
+
+    /**
+     * Read and decode a contact photo straight to the target size.
+     */
+    private Bitmap load(long contactId) {
+        byte[] data = readPhoto(contactId);
+        if (data == null) {
+            return null;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inSampleSize = PhotoScaling.calculateInSampleSize(options.outWidth, options.outHeight, targetWidth, targetHeight);
+
+        if (options.outWidth == targetWidth && options.outHeight == targetHeight) {
+            // already icon sized, decode straight into a reusable bitmap if there is one
+            return decode(data, options, takeReusable());
+        }
+
+        Bitmap sampled = decode(data, options, Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ? takeScratch() : null);
+        if (sampled == null) {
+            return null;
+        }
+
+        Bitmap icon = takeReusable();
+        if (icon == null) {
+            icon = Bitmap.createBitmap(targetWidth, targetHeight, Bitmap.Config.ARGB_8888);
+        }
+        else {
+            icon.eraseColor(Color.TRANSPARENT);
+        }
+
+        Canvas canvas = new Canvas(icon);
+        canvas.drawBitmap(sampled, centerCrop(sampled.getWidth(), sampled.getHeight(), targetWidth, targetHeight),
+                new Rect(0, 0, targetWidth, targetHeight), paint);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            returnScratch(sampled);
+        }
+        else {
+            sampled.recycle();
+        }
+
+        return icon;
+    }
+
+    /**
+     * Decode into inBitmap if possible, falling back to a new allocation if the platform refuses it.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private Bitmap decode(byte[] data, BitmapFactory.Options options, Bitmap inBitmap) {
+        if (inBitmap != null) {
+            options.inBitmap = inBitmap;
+            try {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            } catch (IllegalArgumentException e) {
+                Log.v(TAG, "Couldn't reuse bitmap: " + e.getMessage());
+                options.inBitmap = null;
+            }
+        }
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    private byte[] readPhoto(long contactId) {
+        Uri contactUri = ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, contactId);
+        Metrics.count(Metrics.PROVIDER_QUERIES);
+        InputStream photoInput = ContactsContract.Contacts.openContactPhotoInputStream(cr, contactUri, true);
+
+        if (photoInput == null) {
+            return null;
+        }
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = photoInput.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read contact photo", e);
+            return null;
+        }
+        finally {
+            try {
+                photoInput.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close contact photo input stream", e);
+            }
+        }
+    }
+
+    private static Rect centerCrop(int width, int height, int targetWidth, int targetHeight) {
+        int[] crop = PhotoScaling.centerCrop(width, height, targetWidth, targetHeight);
+        return new Rect(crop[0], crop[1], crop[2], crop[3]);
+    }
+}
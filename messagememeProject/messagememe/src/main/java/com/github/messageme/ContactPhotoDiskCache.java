@@ -0,0 +1,237 @@
+package com.github.messageme;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Disk tier for contact photos, so they survive the process being killed.
+ *
+ * Each photo is stored already scaled to notification icon size as raw
+ * ARGB_8888 pixels after a small header, and read back through a memory
+ * mapped file straight into a bitmap.  Files are evicted least recently used
+ * first once their total size passes the limit; the access order is kept in
+ * the files' modification times so it carries across restarts.
+ */
+public class ContactPhotoDiskCache {
+    private static final String TAG = "ContactPhotoDiskCache";
+    private static final String SUFFIX = ".argb";
+    private static final int MAGIC = 0x4d4d4176;
+    private static final int HEADER_SIZE = 12;
+
+    private final File dir;
+    private final long maxBytes;
+
+    /** file name to size in bytes, least recently used first.  Null until loaded. */
+    private LinkedHashMap<String, Long> entries;
+    private long totalBytes;
+
+    /**
+     * @param dir directory to keep the files in, created if necessary
+     * @param maxBytes total size limit for the files
+     */
+    public ContactPhotoDiskCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Build the key for a photo.  Anything that changes when the photo changes must be part of it.
+     */
+    public static String key(long contactId, long photoId, long version) {
+        return contactId + "_" + photoId + "_" + version;
+    }
+
+    public synchronized boolean contains(String key) {
+        return getEntries().containsKey(key + SUFFIX);
+    }
+
+    /**
+     * Read a photo into an existing bitmap.
+     * @param into mutable ARGB_8888 bitmap of the size the photo was written at
+     * @return true if the photo was found and read
+     */
+    public synchronized boolean read(String key, Bitmap into) {
+        String name = key + SUFFIX;
+        if (getEntries().get(name) == null) {
+            return false;
+        }
+
+        File file = new File(dir, name);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.nativeOrder());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != into.getWidth() || buffer.getInt() != into.getHeight()
+                    || buffer.remaining() < into.getByteCount()) {
+                // written by an older version or for a different screen size
+                remove(name);
+                return false;
+            }
+
+            into.copyPixelsFromBuffer(buffer);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + name, e);
+            remove(name);
+            return false;
+        }
+        finally {
+            closeQuietly(raf);
+        }
+
+        // mark as recently used, in memory and on disk
+        entries.put(name, entries.remove(name));
+        file.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Write a photo, replacing any other version of the same contact's photo.
+     * @param contactId the contact, so older versions can be removed
+     * @param photo ARGB_8888 bitmap at notification icon size
+     */
+    public synchronized void write(String key, long contactId, Bitmap photo) {
+        String name = key + SUFFIX;
+        getEntries();
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + photo.getByteCount());
+        buffer.order(ByteOrder.nativeOrder());
+        buffer.putInt(MAGIC).putInt(photo.getWidth()).putInt(photo.getHeight());
+        photo.copyPixelsToBuffer(buffer);
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Failed to create " + dir);
+            return;
+        }
+
+        // write then rename so a crash never leaves a partial file under the real name
+        File temp = new File(dir, name + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(buffer.array(), 0, buffer.position());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + name, e);
+            temp.delete();
+            return;
+        }
+        finally {
+            closeQuietly(out);
+        }
+
+        if (!temp.renameTo(new File(dir, name))) {
+            Log.e(TAG, "Failed to rename " + temp);
+            temp.delete();
+            return;
+        }
+
+        String contactPrefix = contactId + "_";
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            String existing = it.next();
+            if (existing.startsWith(contactPrefix) && !existing.equals(name)) {
+                totalBytes -= entries.get(existing);
+                new File(dir, existing).delete();
+                it.remove();
+            }
+        }
+
+        Long previous = entries.put(name, (long) buffer.position());
+        if (previous != null) {
+            totalBytes -= previous;
+        }
+        totalBytes += buffer.position();
+
+        trimToSize();
+    }
+
+    private void remove(String name) {
+        Long size = entries.remove(name);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        new File(dir, name).delete();
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            totalBytes -= eldest.getValue();
+            new File(dir, eldest.getKey()).delete();
+            it.remove();
+        }
+    }
+
+    /**
+     * Load the entries from the directory listing on first use, oldest first.
+     */
+    private LinkedHashMap<String, Long> getEntries() {
+        if (entries != null) {
+            return entries;
+        }
+
+        entries = new LinkedHashMap<String, Long>();
+        totalBytes = 0;
+
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return entries;
+        }
+
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return modified[a] < modified[b] ? -1 : (modified[a] == modified[b] ? 0 : 1);
+            }
+        });
+
+        for (Integer i : order) {
+            File file = files[i];
+            if (!file.getName().endsWith(SUFFIX)) {
+                // leftover temp file from a crash
+                file.delete();
+                continue;
+            }
+            entries.put(file.getName(), file.length());
+            totalBytes += file.length();
+        }
+
+        trimToSize();
+        return entries;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close", e);
+        }
+    }
+}
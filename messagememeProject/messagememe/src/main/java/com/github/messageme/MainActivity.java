@@ -9,8 +9,12 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.TextView;
 import android.os.Build;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
 public class MainActivity extends Activity {
 
     @Override
@@ -42,6 +46,12 @@ public class MainActivity extends Activity {
         switch (item.getItemId()) {
             case R.id.action_settings:
                 return true;
+            case R.id.action_stats:
+                getFragmentManager().beginTransaction()
+                        .replace(R.id.container, new StatsFragment())
+                        .addToBackStack(null)
+                        .commit();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -62,4 +72,32 @@ public class MainActivity extends Activity {
         }
     }
 
+    /**
+     * Shows the same stats as dumpsys, refreshed whenever the screen is shown.
+     */
+    public static class StatsFragment extends Fragment {
+
+        public StatsFragment() {
+        }
+
+        @Override
+        public View onCreateView(LayoutInflater inflater, ViewGroup container,
+                Bundle savedInstanceState) {
+            return inflater.inflate(R.layout.fragment_stats, container, false);
+        }
+
+        @Override
+        public void onResume() {
+            super.onResume();
+
+            StringWriter stats = new StringWriter();
+            PrintWriter writer = new PrintWriter(stats);
+            StatsService.writeStats(getActivity(), writer);
+            writer.flush();
+
+            TextView text = (TextView) getView().findViewById(R.id.stats);
+            text.setText(stats.toString());
+        }
+    }
+
 }
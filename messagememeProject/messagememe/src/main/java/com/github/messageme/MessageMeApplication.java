@@ -0,0 +1,276 @@
+package com.github.messageme;
+
+import android.app.Application;
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.github.messageme.interfaces.Clock;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the process's shared state: the SMS database, the notification ID
+ * manager, the caches and the worker threads.
+ *
+ * Android creates a new BroadcastReceiver for every broadcast, so anything
+ * a receiver builds for itself is thrown away with it.  Everything that's
+ * worth keeping lives here instead, and is reached with
+ * {@code MessageMeApplication.get(context)}.
+ *
+ * Components are created on first use.  When the process starts, a
+ * background thread creates the ones the receive path needs, so the first
+ * broadcast doesn't pay for loading the ID file or the contact index.
+ */
+public class MessageMeApplication extends Application {
+    private static final String TAG = "MessageMeApplication";
+
+    /** The receive path's clock */
+    private static final Clock ELAPSED_REALTIME = new Clock() {
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    private PhoneNumberNormalizer normalizer;
+    private FileNotificationIdManager idManager;
+    private ThreadIdCache threadIds;
+    private SmsWriteBatcher writes;
+    private SmsDatabase smsDatabase;
+    private UnreadMirror unreadMirror;
+    private ScheduledExecutorService mirrorReconciler;
+    private ContactIndex contactIndex;
+    private ContactPhotoCache photoCache;
+    private QuickResponsePack quickResponses;
+    private QuickResponseIntents quickResponseIntents;
+    private NotificationTextBuilder textBuilder;
+    private NotificationScheduler scheduler;
+    private ReceivePipeline receivePipeline;
+    private Outbox outbox;
+
+    public static MessageMeApplication get(Context context) {
+        return (MessageMeApplication) context.getApplicationContext();
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        warm();
+    }
+
+    /**
+     * Create the receive path's components in the background.
+     */
+    private void warm() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                long start = System.nanoTime();
+                try {
+                    getIdManager();
+                    getSmsDatabase();
+                    getUnreadMirror();
+                    getContactIndex();
+                    getQuickResponses();
+                    getQuickResponseIntents();
+                    getContactPhotoCache();
+                    getReceivePipeline();
+                } catch (Exception e) {
+                    Log.e(TAG, "Error in warming up", e);
+                }
+                Log.v(TAG, "warmed up in " + (System.nanoTime() - start) / 1000000 + "ms");
+            }
+        }, "Warmup").start();
+    }
+
+    /**
+     * @return the normalizer for the region configured in config.xml
+     */
+    public synchronized PhoneNumberNormalizer getNormalizer() {
+        if (normalizer == null) {
+            Resources res = getResources();
+            normalizer = new PhoneNumberNormalizer(res.getString(R.string.phone_country_code),
+                    res.getInteger(R.integer.phone_national_length),
+                    res.getString(R.string.phone_trunk_prefix),
+                    res.getString(R.string.phone_international_prefix));
+        }
+        return normalizer;
+    }
+
+    /**
+     * @return the notification ID manager, stored in the app's files directory
+     */
+    public synchronized FileNotificationIdManager getIdManager() {
+        if (idManager == null) {
+            idManager = new FileNotificationIdManager(
+                    new File(getFilesDir(), FileNotificationIdManager.FILE_NAME), getNormalizer());
+        }
+        return idManager;
+    }
+
+    public synchronized ThreadIdCache getThreadIdCache() {
+        if (threadIds == null) {
+            threadIds = new ThreadIdCache(new ProviderThreadIdResolver(getContentResolver()), getNormalizer());
+        }
+        return threadIds;
+    }
+
+    public synchronized SmsWriteBatcher getWriteBatcher() {
+        if (writes == null) {
+            Resources res = getResources();
+            writes = new SmsWriteBatcher(getContentResolver(),
+                    res.getInteger(R.integer.sms_write_batch_size),
+                    res.getInteger(R.integer.sms_write_batch_delay_ms));
+        }
+        return writes;
+    }
+
+    public synchronized SmsDatabase getSmsDatabase() {
+        if (smsDatabase == null) {
+            smsDatabase = new SmsDatabase(getContentResolver(), getNormalizer(), getWriteBatcher(), getThreadIdCache());
+        }
+        return smsDatabase;
+    }
+
+    /**
+     * @return the in-memory unread messages, checked against the provider in the background
+     */
+    public synchronized UnreadMirror getUnreadMirror() {
+        if (unreadMirror == null) {
+            Resources res = getResources();
+            unreadMirror = new UnreadMirror(getSmsDatabase(),
+                    res.getInteger(R.integer.notification_preview_messages),
+                    res.getInteger(R.integer.unread_mirror_grace_ms));
+
+            long period = res.getInteger(R.integer.unread_mirror_reconcile_ms);
+            mirrorReconciler = Executors.newSingleThreadScheduledExecutor(new BackgroundThreadFactory("UnreadMirror"));
+            final UnreadMirror mirror = unreadMirror;
+            mirrorReconciler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int stale = mirror.reconcile(SystemClock.elapsedRealtime());
+                        Log.v(TAG, "unread mirror reconciled, " + stale + " of " + mirror.size() + " senders were stale");
+                    } catch (Exception e) {
+                        // an exception would cancel the schedule
+                        Log.e(TAG, "Error in reconciling unread mirror", e);
+                    }
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+        return unreadMirror;
+    }
+
+    /**
+     * @return the contact index, which starts loading the first time it's asked for
+     */
+    public synchronized ContactIndex getContactIndex() {
+        if (contactIndex == null) {
+            contactIndex = new ContactIndex(getContentResolver(),
+                    getResources().getInteger(R.integer.contact_load_wait_ms));
+            contactIndex.start();
+        }
+        return contactIndex;
+    }
+
+    public synchronized ContactPhotoCache getContactPhotoCache() {
+        if (photoCache == null) {
+            Resources res = getResources();
+            photoCache = new ContactPhotoCache(getContentResolver(),
+                    res.getDimensionPixelSize(android.R.dimen.notification_large_icon_width),
+                    res.getDimensionPixelSize(android.R.dimen.notification_large_icon_height),
+                    res.getInteger(R.integer.photo_cache_kb) * 1024,
+                    new ContactPhotoDiskCache(new File(getCacheDir(), "avatars"),
+                            res.getInteger(R.integer.photo_disk_cache_kb) * 1024L));
+        }
+        return photoCache;
+    }
+
+    /**
+     * @return the quick responses for the current locale, reloaded if the locale has changed
+     */
+    public synchronized QuickResponsePack getQuickResponses() {
+        Locale locale = getResources().getConfiguration().locale;
+        if (quickResponses == null || !quickResponses.isFor(locale)) {
+            quickResponses = new QuickResponsePack(getResources(), locale);
+        }
+        return quickResponses;
+    }
+
+    public synchronized QuickResponseIntents getQuickResponseIntents() {
+        if (quickResponseIntents == null) {
+            quickResponseIntents = new QuickResponseIntents(getNormalizer());
+        }
+        return quickResponseIntents;
+    }
+
+    /**
+     * Builds the notification text from the new message plus any unread messages.
+     * Due to the buttons, the text is only a single line in the layout, so the limit is configurable.
+     */
+    public synchronized NotificationTextBuilder getTextBuilder() {
+        if (textBuilder == null) {
+            textBuilder = new NotificationTextBuilder(ReceivePipeline.MESSAGE_SEPARATOR,
+                    getResources().getInteger(R.integer.notification_text_length));
+        }
+        return textBuilder;
+    }
+
+    public synchronized NotificationScheduler getNotificationScheduler() {
+        if (scheduler == null) {
+            Resources res = getResources();
+            scheduler = new NotificationScheduler(new NotificationPoster(this), getIdManager(),
+                    new ExecutorDelayScheduler(Executors.newSingleThreadScheduledExecutor(
+                            new BackgroundThreadFactory("NotificationFrame"))),
+                    res.getInteger(R.integer.render_frame_ms),
+                    res.getInteger(R.integer.summary_sender_threshold));
+        }
+        return scheduler;
+    }
+
+    /**
+     * @return the receive pipeline, whose threads outlive the receivers that submit to it
+     */
+    public synchronized ReceivePipeline getReceivePipeline() {
+        if (receivePipeline == null) {
+            Resources res = getResources();
+            receivePipeline = new ReceivePipeline(
+                    Executors.newSingleThreadExecutor(new BackgroundThreadFactory("SmsDecode")),
+                    ReceivePipeline.newWorkerPool(res.getInteger(R.integer.receive_pool_size),
+                            res.getInteger(R.integer.receive_queue_capacity),
+                            new BackgroundThreadFactory("SmsWorker")),
+                    new ExecutorDelayScheduler(Executors.newSingleThreadScheduledExecutor(
+                            new BackgroundThreadFactory("SmsTimers"))),
+                    ELAPSED_REALTIME,
+                    res.getInteger(R.integer.receive_timeout_ms),
+                    new SmsPduDecoder(),
+                    getContactIndex(),
+                    getUnreadMirror(),
+                    getIdManager(),
+                    new NotificationRateLimiter(res.getInteger(R.integer.notification_rate_per_minute),
+                            res.getInteger(R.integer.notification_burst)),
+                    getNormalizer(), getNotificationScheduler());
+        }
+        return receivePipeline;
+    }
+
+    public synchronized Outbox getOutbox() {
+        if (outbox == null) {
+            Resources res = getResources();
+            outbox = new Outbox(this, new File(getFilesDir(), Outbox.DIRECTORY), getSmsDatabase(),
+                    res.getInteger(R.integer.outbox_max_attempts),
+                    res.getInteger(R.integer.outbox_retry_base_ms),
+                    res.getInteger(R.integer.outbox_retry_max_ms),
+                    res.getInteger(R.integer.outbox_in_flight_timeout_ms));
+        }
+        return outbox;
+    }
+}
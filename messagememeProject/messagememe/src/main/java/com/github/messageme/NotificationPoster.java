@@ -0,0 +1,154 @@
+package com.github.messageme;
+
+import android.annotation.TargetApi;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.github.messageme.interfaces.Notifier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders notifications and posts them with the NotificationManager, for the
+ * NotificationScheduler.  Each notification has the contact's name, photo and
+ * unread messages, and a button for each quick response.
+ */
+class NotificationPoster implements Notifier {
+    private static final String TAG = "NotificationPoster";
+    private static final String SUMMARY_TAG = "summary";
+    private static final int SUMMARY_ID = 0;
+
+    private final Context context;
+
+    NotificationPoster(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Render the notification, including the quick responses and contact photo, post it,
+     * and make sure we're watching for the messages being read.
+     */
+    @Override
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void post(EnrichedSms enriched) {
+        MessageMeApplication app = MessageMeApplication.get(context);
+        QuickResponsePack responses = app.getQuickResponses();
+        PendingIntent[] responseIntents = app.getQuickResponseIntents()
+                .getIntents(context, enriched.sms.phoneNumber, enriched.notificationId, responses);
+
+        // TODO: addAction is Jelly Bean and above.  Switch to NotificationCompat or require JB API level.
+        Notification.Builder builder = new Notification.Builder(context)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentTitle(enriched.contactName)
+                .setContentText(app.getTextBuilder().build(enriched.unread, enriched.sms.body))
+                .setNumber(enriched.unread.count + 1);
+
+        for (int i = 0; i < responses.size(); i++) {
+            builder.addAction(responses.getIcon(i), responses.getResponse(i), responseIntents[i]);
+        }
+
+        ContactPhotoCache photos = app.getContactPhotoCache();
+        Bitmap contactPhoto = photos.acquire(enriched.contactId, enriched.photoId, enriched.contactVersion);
+        try {
+            if (contactPhoto != null) {
+                builder.setLargeIcon(contactPhoto);
+            }
+            Notification notification = builder.build();
+
+            long start = Metrics.start();
+            getNotificationManager().notify(enriched.notificationId, notification);
+            Metrics.end(Metrics.STAGE_NOTIFY, start);
+        }
+        finally {
+            // notify() has parceled the photo, so the cache may reuse it
+            photos.release(contactPhoto);
+        }
+
+        Log.v(TAG, "Notification posted " + (SystemClock.elapsedRealtime() - enriched.sms.receivedAt) + "ms after receive");
+
+        watchForReads();
+    }
+
+    /**
+     * Post the summary.  Its quick responses go to the newest contact, since
+     * grouping the contacts' own notifications under it needs API 20.
+     */
+    @Override
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    public void postSummary(List<EnrichedSms> newestFirst) {
+        Notification.InboxStyle style = new Notification.InboxStyle();
+        ArrayList<String> names = new ArrayList<String>(newestFirst.size());
+        int messages = 0;
+
+        for (EnrichedSms enriched : newestFirst) {
+            style.addLine(enriched.contactName + "  " + enriched.sms.body);
+            names.add(enriched.contactName);
+            messages += enriched.unread.count + 1;
+        }
+
+        String title = context.getString(R.string.summary_title, newestFirst.size());
+        String text = joinNames(names);
+        Notification.Builder builder = new Notification.Builder(context)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentTitle(title)
+                .setContentText(text)
+                .setNumber(messages)
+                .setStyle(style.setBigContentTitle(title));
+
+        if (!newestFirst.isEmpty()) {
+            EnrichedSms newest = newestFirst.get(0);
+            MessageMeApplication app = MessageMeApplication.get(context);
+            QuickResponsePack responses = app.getQuickResponses();
+            PendingIntent[] responseIntents = app.getQuickResponseIntents()
+                    .getIntents(context, newest.sms.phoneNumber, newest.notificationId, responses);
+
+            builder.setSubText(context.getString(R.string.summary_reply_to, newest.contactName));
+            for (int i = 0; i < responses.size(); i++) {
+                builder.addAction(responses.getIcon(i), responses.getResponse(i), responseIntents[i]);
+            }
+        }
+
+        getNotificationManager().notify(SUMMARY_TAG, SUMMARY_ID, builder.build());
+        watchForReads();
+    }
+
+    @Override
+    public void cancel(int notificationId) {
+        getNotificationManager().cancel(notificationId);
+    }
+
+    @Override
+    public void cancelSummary() {
+        getNotificationManager().cancel(SUMMARY_TAG, SUMMARY_ID);
+    }
+
+    /**
+     * Make sure we're watching for the messages being read, so posted notifications get dismissed.
+     */
+    private void watchForReads() {
+        MessageMeApplication app = MessageMeApplication.get(context);
+        app.getSmsDatabase().checkCreateObserver(context, app.getIdManager());
+    }
+
+    private static String joinNames(ArrayList<String> names) {
+        StringBuilder builder = new StringBuilder();
+        for (String name : names) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(name);
+        }
+        return builder.toString();
+    }
+
+    private NotificationManager getNotificationManager() {
+        return (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+    }
+}
@@ -0,0 +1,515 @@
+package com.github.messageme;
+
+import android.app.Activity;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.telephony.SmsManager;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends quick replies reliably.
+ *
+ * Each reply is saved to its own file before it is sent, so it survives the
+ * process being killed.  Replies are split with divideMessage, and every
+ * part gets a sent PendingIntent that reports back to SmsSender.  Only when
+ * all parts of an attempt succeed is the reply written to the Sent folder
+ * and its file deleted.  A failed attempt is retried with exponential
+ * backoff and jitter, using an alarm so retries happen even if the process
+ * dies in between.  After the last attempt fails the user is told.
+ *
+ * The in-flight state is saved too, so an attempt's results are still
+ * matched to it if the process dies and restarts meanwhile.  An attempt
+ * that hasn't reported within the in-flight timeout (e.g. because the
+ * device rebooted) is treated as failed and retried, so delivery is at
+ * least once.
+ *
+ * All state is kept on a single background thread.
+ */
+public class Outbox {
+    private static final String TAG = "Outbox";
+
+    public static final String ACTION_SENT = "com.github.messageme.MESSAGE_SENT";
+    public static final String ACTION_DELIVERED = "com.github.messageme.MESSAGE_DELIVERED";
+    public static final String ACTION_RETRY = "com.github.messageme.RETRY_SEND";
+
+    private static final String EXTRA_MESSAGE_ID = "messageId";
+    private static final String EXTRA_ATTEMPT = "attempt";
+    private static final String EXTRA_PART = "part";
+
+    static final String DIRECTORY = "outbox";
+    private static final String SUFFIX = ".msg";
+    private static final int FORMAT_VERSION = 2;
+    /** files from before the in-flight state was saved; read as not in flight */
+    private static final int FORMAT_VERSION_NO_FLIGHT = 1;
+
+    /** cap on the backoff shift so it can't overflow */
+    private static final int MAX_BACKOFF_SHIFT = 20;
+
+    private final Context context;
+    private final File directory;
+    private final SmsDatabase smsDatabase;
+    private final int maxAttempts;
+    private final long retryBaseMillis;
+    private final long retryMaxMillis;
+    private final long inFlightTimeoutMillis;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Random random = new Random();
+
+    /** queued replies by ID; only used on the executor thread */
+    private final HashMap<Long, OutboxMessage> messages = new HashMap<Long, OutboxMessage>();
+    private boolean loaded = false;
+    private long nextId;
+
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong totalSendMillis = new AtomicLong();
+
+    /**
+     * @param directory where queued replies are saved
+     * @param smsDatabase where sent replies are written
+     * @param maxAttempts attempts before a reply is given up on
+     * @param retryBaseMillis delay before the first retry, doubled for each one after
+     * @param retryMaxMillis longest delay between retries
+     * @param inFlightTimeoutMillis how long to wait for an attempt's results before retrying it
+     */
+    public Outbox(Context context, File directory, SmsDatabase smsDatabase,
+                  int maxAttempts, long retryBaseMillis, long retryMaxMillis, long inFlightTimeoutMillis) {
+        this.context = context;
+        this.directory = directory;
+        this.smsDatabase = smsDatabase;
+        this.maxAttempts = maxAttempts;
+        this.retryBaseMillis = retryBaseMillis;
+        this.retryMaxMillis = retryMaxMillis;
+        this.inFlightTimeoutMillis = inFlightTimeoutMillis;
+    }
+
+    /**
+     * Queue a reply and start sending it.
+     */
+    public void enqueue(final String destination, final String body, BroadcastReceiver.PendingResult result) {
+        runAsync(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                OutboxMessage message = new OutboxMessage(nextId++, destination, body, System.currentTimeMillis());
+                messages.put(message.id, message);
+                save(message);
+                Log.v(TAG, "queued message " + message.id + " to " + destination);
+
+                sendDue();
+            }
+        }, result);
+    }
+
+    /**
+     * Handle the sent result of one part, from a MESSAGE_SENT broadcast.
+     * @param resultCode the broadcast's result code: Activity.RESULT_OK or one of the SmsManager errors
+     */
+    public void onSent(Intent intent, final int resultCode, BroadcastReceiver.PendingResult result) {
+        final long id = intent.getLongExtra(EXTRA_MESSAGE_ID, -1);
+        final int attempt = intent.getIntExtra(EXTRA_ATTEMPT, -1);
+        final int part = intent.getIntExtra(EXTRA_PART, -1);
+
+        runAsync(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                OutboxMessage message = messages.get(id);
+                if (message == null || message.attempts != attempt) {
+                    Log.w(TAG, "ignoring stale result for message " + id + " attempt " + attempt);
+                    return;
+                }
+                if (!message.inFlight) {
+                    // the attempt timed out and is waiting to be retried; if it went out after
+                    // all, don't send it again
+                    if (resultCode == Activity.RESULT_OK) {
+                        Log.v(TAG, "message " + id + " sent after its attempt timed out");
+                        succeeded(message);
+                        scheduleRetry();
+                    }
+                    return;
+                }
+
+                Log.v(TAG, "message " + id + " part " + part + " result " + resultCode);
+                if (resultCode != Activity.RESULT_OK && message.failureCode == Activity.RESULT_OK) {
+                    message.failureCode = resultCode;
+                }
+                if (--message.partsPending > 0) {
+                    save(message);
+                    return;
+                }
+
+                message.inFlight = false;
+                if (message.failureCode == Activity.RESULT_OK) {
+                    succeeded(message);
+                }
+                else {
+                    failed(message);
+                }
+            }
+        }, result);
+    }
+
+    /**
+     * Handle a delivery report for the last part of a reply.
+     */
+    public void onDelivered(Intent intent) {
+        deliveredCount.incrementAndGet();
+        Log.v(TAG, "message " + intent.getLongExtra(EXTRA_MESSAGE_ID, -1) + " delivered");
+    }
+
+    /**
+     * Send any replies whose retry is due, e.g. when the retry alarm fires or after a reboot.
+     */
+    public void resume(BroadcastReceiver.PendingResult result) {
+        runAsync(new Runnable() {
+            @Override
+            public void run() {
+                sendDue();
+            }
+        }, result);
+    }
+
+    /**
+     * @return replies sent successfully
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * @return delivery reports received
+     */
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    /**
+     * @return failed attempts that were retried
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * @return replies given up on after the last attempt
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return average time from queueing to the confirmed send, in ms, or 0 if nothing has been sent
+     */
+    public long getAverageSendMillis() {
+        long sent = sentCount.get();
+        return sent == 0 ? 0 : totalSendMillis.get() / sent;
+    }
+
+    /**
+     * Fail any attempt that has timed out, start an attempt for every reply that's due and not
+     * in flight, then set the alarm for the next retry or timeout.
+     */
+    private void sendDue() {
+        load();
+
+        long now = System.currentTimeMillis();
+        // copied since a failed attempt may remove the message
+        for (OutboxMessage message : new ArrayList<OutboxMessage>(messages.values())) {
+            if (message.inFlight && message.inFlightUntil <= now) {
+                Log.w(TAG, "message " + message.id + " attempt " + message.attempts + " timed out with "
+                        + message.partsPending + " parts pending");
+                message.inFlight = false;
+                if (message.failureCode == Activity.RESULT_OK) {
+                    message.failureCode = SmsManager.RESULT_ERROR_GENERIC_FAILURE;
+                }
+                failed(message);
+            }
+            else if (!message.inFlight && message.nextAttemptAt <= now) {
+                send(message);
+            }
+        }
+
+        scheduleRetry();
+    }
+
+    private void send(OutboxMessage message) {
+        SmsManager smsManager = SmsManager.getDefault();
+        ArrayList<String> parts = smsManager.divideMessage(message.body);
+
+        message.attempts++;
+        message.inFlight = true;
+        message.partsPending = parts.size();
+        message.failureCode = Activity.RESULT_OK;
+        message.attemptStartedAt = SystemClock.elapsedRealtime();
+        message.inFlightUntil = System.currentTimeMillis() + inFlightTimeoutMillis;
+        save(message);
+
+        // one sent intent per part; a delivery report is only requested for the last part
+        ArrayList<PendingIntent> sentIntents = new ArrayList<PendingIntent>(parts.size());
+        ArrayList<PendingIntent> deliveryIntents = new ArrayList<PendingIntent>(parts.size());
+        for (int part = 0; part < parts.size(); part++) {
+            sentIntents.add(buildResultIntent(ACTION_SENT, message, part));
+            deliveryIntents.add(part == parts.size() - 1 ? buildResultIntent(ACTION_DELIVERED, message, part) : null);
+        }
+
+        Log.v(TAG, "sending message " + message.id + " in " + parts.size() + " parts, attempt " + message.attempts);
+        try {
+            if (parts.size() == 1) {
+                smsManager.sendTextMessage(message.destination, null, parts.get(0), sentIntents.get(0), deliveryIntents.get(0));
+            }
+            else {
+                smsManager.sendMultipartTextMessage(message.destination, null, parts, sentIntents, deliveryIntents);
+            }
+        } catch (RuntimeException e) {
+            // e.g. IllegalArgumentException for an empty destination
+            Log.e(TAG, "Failed to send message " + message.id, e);
+            message.inFlight = false;
+            message.failureCode = SmsManager.RESULT_ERROR_GENERIC_FAILURE;
+            failed(message);
+        }
+    }
+
+    private void succeeded(OutboxMessage message) {
+        long attemptMillis = SystemClock.elapsedRealtime() - message.attemptStartedAt;
+        long totalMillis = System.currentTimeMillis() - message.enqueuedAt;
+        sentCount.incrementAndGet();
+        totalSendMillis.addAndGet(totalMillis);
+        Log.v(TAG, "message " + message.id + " sent in " + attemptMillis + "ms, " + totalMillis
+                + "ms after queueing, attempt " + message.attempts);
+
+        smsDatabase.writeSentMessage(message.destination, message.body);
+        smsDatabase.flushWrites();
+        remove(message);
+    }
+
+    private void failed(OutboxMessage message) {
+        if (message.attempts >= maxAttempts) {
+            failedCount.incrementAndGet();
+            Log.w(TAG, "giving up on message " + message.id + " after " + message.attempts
+                    + " attempts, last result " + message.failureCode);
+            remove(message);
+            showFailure(message);
+            return;
+        }
+
+        long delay = getRetryDelay(message.attempts);
+        message.nextAttemptAt = System.currentTimeMillis() + delay;
+        save(message);
+        retryCount.incrementAndGet();
+        Log.v(TAG, "message " + message.id + " failed with " + message.failureCode + ", retrying in " + delay + "ms");
+
+        scheduleRetry();
+    }
+
+    /**
+     * Exponential backoff with "equal jitter": a random delay between half and all of the backoff,
+     * so replies that failed together don't all retry together.
+     */
+    private long getRetryDelay(int attempts) {
+        long backoff = Math.min(retryMaxMillis, retryBaseMillis << Math.min(attempts - 1, MAX_BACKOFF_SHIFT));
+        return backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+    }
+
+    /**
+     * Set the alarm for the earliest retry or in-flight timeout, or cancel it if there's nothing waiting.
+     */
+    private void scheduleRetry() {
+        long next = Long.MAX_VALUE;
+        for (OutboxMessage message : messages.values()) {
+            next = Math.min(next, message.inFlight ? message.inFlightUntil : message.nextAttemptAt);
+        }
+
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        Intent intent = new Intent(ACTION_RETRY, null, context, SmsSender.class);
+        PendingIntent retry = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        if (next == Long.MAX_VALUE) {
+            alarmManager.cancel(retry);
+        }
+        else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, next, retry);
+        }
+    }
+
+    /**
+     * Each part gets its own data URI, so the PendingIntents don't replace each other's extras.
+     */
+    private PendingIntent buildResultIntent(String action, OutboxMessage message, int part) {
+        Uri uri = Uri.parse("messageme://outbox/" + message.id + "/" + message.attempts + "/" + part);
+        Intent intent = new Intent(action, uri, context, SmsSender.class);
+        intent.putExtra(EXTRA_MESSAGE_ID, message.id);
+        intent.putExtra(EXTRA_ATTEMPT, message.attempts);
+        intent.putExtra(EXTRA_PART, part);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_ONE_SHOT);
+    }
+
+    private void showFailure(final OutboxMessage message) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(context, context.getString(R.string.send_failed, message.destination),
+                        Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    private void runAsync(final Runnable task, final BroadcastReceiver.PendingResult result) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    Log.e(TAG, "Error in outbox", e);
+                }
+                finally {
+                    if (result != null) {
+                        result.finish();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Read the saved replies the first time the outbox is used.  Attempts that were in flight
+     * when the process died stay in flight, waiting for their results or their timeout.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        long maxId = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().endsWith(SUFFIX)) {
+                    file.delete();
+                    continue;
+                }
+
+                OutboxMessage message = read(file);
+                if (message == null) {
+                    file.delete();
+                    continue;
+                }
+                messages.put(message.id, message);
+                maxId = Math.max(maxId, message.id);
+            }
+        }
+        Log.v(TAG, "loaded " + messages.size() + " queued messages");
+
+        // IDs are based on the clock so they aren't reused by a later process, whose
+        // result PendingIntents could otherwise match ones still held by the system
+        nextId = Math.max(maxId + 1, System.currentTimeMillis());
+    }
+
+    private OutboxMessage read(File file) {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                int version = in.readInt();
+                if (version != FORMAT_VERSION && version != FORMAT_VERSION_NO_FLIGHT) {
+                    return null;
+                }
+                long id = in.readLong();
+                String destination = in.readUTF();
+                String body = in.readUTF();
+                OutboxMessage message = new OutboxMessage(id, destination, body, in.readLong());
+                message.attempts = in.readInt();
+                message.nextAttemptAt = in.readLong();
+                if (version == FORMAT_VERSION) {
+                    message.inFlight = in.readBoolean();
+                    message.inFlightUntil = in.readLong();
+                    message.partsPending = in.readInt();
+                    message.failureCode = in.readInt();
+                }
+                return message;
+            }
+            finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the reply to a temp file and rename it over the old one, so a crash never leaves a partial file.
+     */
+    private void save(OutboxMessage message) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Failed to create " + directory);
+            return;
+        }
+
+        File file = getFile(message);
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream fileOut = new FileOutputStream(temp);
+            DataOutputStream out = new DataOutputStream(fileOut);
+            try {
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(message.id);
+                out.writeUTF(message.destination);
+                out.writeUTF(message.body);
+                out.writeLong(message.enqueuedAt);
+                out.writeInt(message.attempts);
+                out.writeLong(message.nextAttemptAt);
+                out.writeBoolean(message.inFlight);
+                out.writeLong(message.inFlightUntil);
+                out.writeInt(message.partsPending);
+                out.writeInt(message.failureCode);
+                out.flush();
+                fileOut.getFD().sync();
+            }
+            finally {
+                out.close();
+            }
+
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to rename " + temp);
+            }
+        } catch (IOException e) {
+            // still sent from memory, just not recoverable if the process dies
+            Log.e(TAG, "Failed to save message " + message.id, e);
+        }
+    }
+
+    private void remove(OutboxMessage message) {
+        messages.remove(message.id);
+        getFile(message).delete();
+    }
+
+    private File getFile(OutboxMessage message) {
+        return new File(directory, message.id + SUFFIX);
+    }
+}
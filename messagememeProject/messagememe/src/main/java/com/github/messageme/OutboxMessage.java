@@ -0,0 +1,44 @@
+package com.github.messageme;
+
+/**
+ * A reply waiting in the Outbox.  Everything but attemptStartedAt is
+ * persisted, so the results of an attempt are still matched to it after
+ * the process restarts.
+ */
+class OutboxMessage {
+    final long id;
+    final String destination;
+    final String body;
+
+    /** System.currentTimeMillis() when the reply was queued */
+    final long enqueuedAt;
+
+    /** send attempts started so far */
+    int attempts;
+
+    /** System.currentTimeMillis() when the next attempt is due */
+    long nextAttemptAt;
+
+    /** true while waiting for the sent results of the current attempt */
+    boolean inFlight;
+
+    /** System.currentTimeMillis() after which an in-flight attempt that hasn't reported is treated as failed */
+    long inFlightUntil;
+
+    /** parts of the current attempt that haven't reported a result */
+    int partsPending;
+
+    /** result code of the first failed part of the current attempt, or Activity.RESULT_OK */
+    int failureCode;
+
+    /** SystemClock.elapsedRealtime() when the current attempt started */
+    long attemptStartedAt;
+
+    OutboxMessage(long id, String destination, String body, long enqueuedAt) {
+        this.id = id;
+        this.destination = destination;
+        this.body = body;
+        this.enqueuedAt = enqueuedAt;
+        this.nextAttemptAt = enqueuedAt;
+    }
+}
@@ -0,0 +1,76 @@
+package com.github.messageme;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import com.github.messageme.interfaces.ThreadIdResolver;
+
+/**
+ * Resolves conversation threads through the SMS provider.
+ *
+ * Looking a thread up reads the thread_id of the newest message to or from
+ * the address, matched the way the provider matches phone numbers.  Getting
+ * or creating one goes through the mms-sms threadID URI, the same lookup
+ * Telephony.Threads.getOrCreateThreadId uses (which is KitKat only); that
+ * one creates the thread if the address doesn't have one yet, so it's only
+ * used for writes.
+ */
+public class ProviderThreadIdResolver implements ThreadIdResolver {
+    private static final String TAG = "ProviderThreadIdResolver";
+    private static final Uri THREAD_ID_CONTENT_URI = Uri.parse("content://mms-sms/threadID");
+    private static final String RECIPIENT = "recipient";
+
+    private static final String WHERE_ADDRESS = "PHONE_NUMBERS_EQUAL(" + SmsDatabase.SMS_ADDRESS + ", ?)";
+    private static final String SORT_NEWEST_ONLY = SmsDatabase.SMS_ID + " DESC LIMIT 1";
+
+    private final ContentResolver cr;
+
+    public ProviderThreadIdResolver(ContentResolver resolver) {
+        cr = resolver;
+    }
+
+    @Override
+    public long findThreadId(String phoneNumber) {
+        Cursor cursor;
+        try {
+            Metrics.count(Metrics.PROVIDER_QUERIES);
+            cursor = cr.query(SmsDatabase.SMS_CONTENT_URI, new String[] { SmsDatabase.SMS_THREAD_ID },
+                    WHERE_ADDRESS, new String[] { phoneNumber }, SORT_NEWEST_ONLY);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to find thread ID", e);
+            return ThreadIdCache.NO_THREAD;
+        }
+        return readThreadId(cursor);
+    }
+
+    @Override
+    public long getOrCreateThreadId(String phoneNumber) {
+        Uri uri = THREAD_ID_CONTENT_URI.buildUpon().appendQueryParameter(RECIPIENT, phoneNumber).build();
+
+        Cursor cursor;
+        try {
+            Metrics.count(Metrics.PROVIDER_QUERIES);
+            cursor = cr.query(uri, new String[] { "_id" }, null, null, null);
+        } catch (RuntimeException e) {
+            // some vendors' providers don't support this URI
+            Log.e(TAG, "Failed to resolve thread ID", e);
+            return ThreadIdCache.NO_THREAD;
+        }
+        return readThreadId(cursor);
+    }
+
+    private static long readThreadId(Cursor cursor) {
+        if (cursor == null) {
+            return ThreadIdCache.NO_THREAD;
+        }
+
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : ThreadIdCache.NO_THREAD;
+        }
+        finally {
+            cursor.close();
+        }
+    }
+}
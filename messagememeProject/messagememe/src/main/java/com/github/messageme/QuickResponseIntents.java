@@ -0,0 +1,79 @@
+package com.github.messageme;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds and caches the PendingIntents for the quick response actions.
+ *
+ * Each (notification, response) pair gets its own request code, so one
+ * contact's actions never replace another contact's extras.  The intents
+ * for a notification are built once and reused for every update of it.
+ * They're rebuilt only when the notification ID now belongs to a
+ * different contact or the quick response pack has been reloaded; since
+ * the request codes are the same, FLAG_UPDATE_CURRENT updates the
+ * system's copy in place.
+ */
+public class QuickResponseIntents {
+
+    private final PhoneNumberNormalizer normalizer;
+
+    /** notification ID to the intents last built for it */
+    private final ConcurrentHashMap<Integer, Entry> cache = new ConcurrentHashMap<Integer, Entry>();
+
+    private static class Entry {
+        final long contactKey;
+        final QuickResponsePack pack;
+        final PendingIntent[] intents;
+
+        Entry(long contactKey, QuickResponsePack pack, PendingIntent[] intents) {
+            this.contactKey = contactKey;
+            this.pack = pack;
+            this.intents = intents;
+        }
+    }
+
+    public QuickResponseIntents(PhoneNumberNormalizer normalizer) {
+        this.normalizer = normalizer;
+    }
+
+    /**
+     * Get the PendingIntents for a notification's quick responses.
+     * @param phoneNumber who the responses are sent to
+     * @param notificationId the notification the actions are on
+     * @param pack the current quick responses
+     * @return one PendingIntent per response in the pack, in order
+     */
+    public PendingIntent[] getIntents(Context context, String phoneNumber, int notificationId, QuickResponsePack pack) {
+        long contactKey = normalizer.getKey(phoneNumber);
+        Entry entry = cache.get(notificationId);
+        if (entry != null && entry.contactKey == contactKey && entry.pack == pack) {
+            return entry.intents;
+        }
+
+        PendingIntent[] intents = new PendingIntent[pack.size()];
+        for (int i = 0; i < intents.length; i++) {
+            Intent intent = buildQuickResponseIntent(phoneNumber, pack.getResponse(i), notificationId);
+            intents[i] = PendingIntent.getBroadcast(context, getRequestCode(notificationId, i), intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+        }
+
+        cache.put(notificationId, new Entry(contactKey, pack, intents));
+        return intents;
+    }
+
+    private static int getRequestCode(int notificationId, int response) {
+        return notificationId * QuickResponsePack.MAX_RESPONSES + response;
+    }
+
+    private static Intent buildQuickResponseIntent(String destinationAddress, String body, int notificationId) {
+        Intent quickResponseIntent = new Intent(SmsSender.AUTO_RESPONSE_INTENT);
+        quickResponseIntent.putExtra(SmsReceiver.DESTINATION_ADDRESS, destinationAddress);
+        quickResponseIntent.putExtra(SmsReceiver.BODY, body);
+        quickResponseIntent.putExtra(SmsReceiver.NOTIFICATION_ID, notificationId);
+        return quickResponseIntent;
+    }
+}
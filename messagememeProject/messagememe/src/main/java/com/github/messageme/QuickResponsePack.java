@@ -0,0 +1,74 @@
+package com.github.messageme;
+
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * The quick responses offered on notifications, loaded from the
+ * quick_responses and quick_response_icons arrays.
+ *
+ * The pack is reloaded when the locale changes, since the responses are
+ * localized strings.  A reload produces a new pack object, which tells
+ * QuickResponseIntents that its cached PendingIntents are out of date.
+ */
+public class QuickResponsePack {
+    private static final String TAG = "QuickResponsePack";
+
+    /** Most responses a pack may have, so each contact gets a fixed range of request codes */
+    public static final int MAX_RESPONSES = 8;
+
+    private final Locale locale;
+    private final String[] responses;
+    private final int[] icons;
+
+    QuickResponsePack(Resources res, Locale locale) {
+        this.locale = locale;
+
+        String[] texts = res.getStringArray(R.array.quick_responses);
+        TypedArray iconArray = res.obtainTypedArray(R.array.quick_response_icons);
+        try {
+            int count = Math.min(texts.length, MAX_RESPONSES);
+            if (count < texts.length) {
+                Log.w(TAG, "Only using the first " + count + " of " + texts.length + " quick responses");
+            }
+
+            responses = new String[count];
+            icons = new int[count];
+            for (int i = 0; i < count; i++) {
+                responses[i] = texts[i];
+                icons[i] = iconArray.getResourceId(i, 0);
+            }
+        }
+        finally {
+            iconArray.recycle();
+        }
+    }
+
+    /**
+     * @return true if the pack was loaded for this locale
+     */
+    public boolean isFor(Locale locale) {
+        return this.locale.equals(locale);
+    }
+
+    public int size() {
+        return responses.length;
+    }
+
+    /**
+     * @return the text sent by a response, also used as its label
+     */
+    public String getResponse(int index) {
+        return responses[index];
+    }
+
+    /**
+     * @return drawable resource for a response's action, or 0 for none
+     */
+    public int getIcon(int index) {
+        return icons[index];
+    }
+}
@@ -1,24 +1,32 @@
 package com.github.messageme;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 
 import com.github.messageme.interfaces.NotificationIdManager;
+import com.github.messageme.interfaces.SmsStore;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Code to interact with SMS content provider.
  *
  * Created by keith on 12/16/13.
  */
-public class SmsDatabase {
+public class SmsDatabase implements SmsStore {
     public static final Uri SMS_CONTENT_URI = Uri.parse("content://sms");
     public static final Uri INBOX_CONTENT_URI = Uri.parse("content://sms/inbox");
     public static final Uri SENT_CONTENT_URI = Uri.parse("content://sms/sent");
@@ -31,30 +39,96 @@ public class SmsDatabase {
     public static final String SMS_ID = "_id";
 
     public static final String WHERE_UNREAD = SMS_READ + " = 0";
-    public static final String WHERE_UNREAD_AND_ADDRESS = WHERE_UNREAD + " AND " + SMS_ADDRESS + " = ?";
+    /**
+     * Matches the address however it was formatted, using the provider's own
+     * phone number comparison; "address = ?" misses "+15551234567" vs "5551234567".
+     */
+    public static final String WHERE_UNREAD_AND_ADDRESS = WHERE_UNREAD + " AND PHONE_NUMBERS_EQUAL(" + SMS_ADDRESS + ", ?)";
+    /**
+     * Matches a conversation by its thread ID, which the provider can use an index
+     * for instead of comparing the address of every unread message.
+     */
+    public static final String WHERE_UNREAD_AND_THREAD = WHERE_UNREAD + " AND " + SMS_THREAD_ID + " = ?";
+
+    public static final String WHERE_AFTER_ID = SMS_ID + " > ?";
 
     public static final String SORT_CHRONOLOGICAL = "date ASC";
+    public static final String SORT_NEWEST_FIRST = "date DESC";
+    public static final String SORT_NEWEST_ID_ONLY = SMS_ID + " DESC LIMIT 1";
+
+    private static final String COUNT = "COUNT(*)";
+
+    /** Query parameter some providers read as the most rows to return, and others ignore */
+    private static final String LIMIT_PARAMETER = "limit";
 
     private static final String TAG = "SmsDatabase";
 
-    private final ContentResolver cr;
+    /** Looper thread that observer events and reconciliation passes run on; guarded by this */
+    private HandlerThread observerThread;
+
+    /** The observer, registered while any notification is active; guarded by this */
     private SmsObserver observer;
 
-    public SmsDatabase(ContentResolver resolver) {
+    private final ContentResolver cr;
+    private final PhoneNumberNormalizer normalizer;
+    private final SmsWriteBatcher writes;
+    private final ThreadIdCache threadIds;
+
+    /**
+     * @param writes where markRead and writeSentMessage queue their writes
+     * @param threadIds resolves the conversation that per-contact queries are scoped to
+     */
+    public SmsDatabase(ContentResolver resolver, PhoneNumberNormalizer normalizer, SmsWriteBatcher writes,
+                       ThreadIdCache threadIds) {
         cr = resolver;
+        this.normalizer = normalizer;
+        this.writes = writes;
+        this.threadIds = threadIds;
+    }
+
+    @Override
+    public PhoneNumberNormalizer getNormalizer() {
+        return normalizer;
     }
 
     /**
      * Mark all messages from this contact as read.
+     * The update is batched; call {@link #flushWrites} if it must be visible right away.
      * @param phoneNumber phone number (not normalized)
      */
+    @Override
     public void markRead(String phoneNumber) {
         Log.v(TAG, "markRead(" + phoneNumber + ")");
 
         ContentValues values = new ContentValues();
         values.put(SMS_READ, true);
         values.put(SMS_SEEN, true);
-        cr.update(INBOX_CONTENT_URI, values, WHERE_UNREAD_AND_ADDRESS, new String[] { phoneNumber });
+        long threadId = threadIds.getThreadId(phoneNumber);
+        writes.add(ContentProviderOperation.newUpdate(INBOX_CONTENT_URI)
+                .withValues(values)
+                .withSelection(whereUnreadFrom(threadId), unreadFromArgs(phoneNumber, threadId))
+                .build());
+    }
+
+    /**
+     * Mark all messages from each of these contacts as read, in a single batch.
+     * @param phoneNumbers phone numbers (not normalized)
+     */
+    @Override
+    public void markAllRead(Iterable<String> phoneNumbers) {
+        for (String phoneNumber : phoneNumbers) {
+            markRead(phoneNumber);
+        }
+        flushWrites();
+    }
+
+    /**
+     * Apply any batched writes now, for callers that need to read after writing
+     * or are about to finish a broadcast.
+     */
+    @Override
+    public void flushWrites() {
+        writes.flush();
     }
 
     /**
@@ -63,13 +137,14 @@ public class SmsDatabase {
      * @param phoneNumber phone number (not normalized)
      * @return list of the messages, in chronological order
      */
+    @Override
     public List<String> getUnread(String phoneNumber) {
         ArrayList<String> messages = new ArrayList<String>();
 
-        Cursor cursor = cr.query(INBOX_CONTENT_URI,
-                new String[] { SMS_ID, SMS_ADDRESS, SMS_DATE, SMS_BODY },
-                WHERE_UNREAD_AND_ADDRESS,
-                new String[] { phoneNumber },
+        long threadId = threadIds.getThreadId(phoneNumber);
+        Cursor cursor = queryInbox(new String[] { SMS_ID, SMS_ADDRESS, SMS_DATE, SMS_BODY },
+                whereUnreadFrom(threadId),
+                unreadFromArgs(phoneNumber, threadId),
                 SORT_CHRONOLOGICAL);
 
         if (cursor == null) {
@@ -93,72 +168,333 @@ public class SmsDatabase {
         return messages;
     }
 
+    /**
+     * Get the number of unread messages from this contact and the newest few of them.
+     * The provider counts the messages itself, and at most maxMessages bodies are read,
+     * so the cost doesn't grow with the number of unread messages.
+     * @param phoneNumber phone number (not normalized)
+     * @param maxMessages most message bodies to return
+     */
+    @Override
+    public UnreadPreview getUnreadPreview(String phoneNumber, int maxMessages) {
+        long threadId = threadIds.getThreadId(phoneNumber);
+        String where = whereUnreadFrom(threadId);
+        String[] whereArgs = unreadFromArgs(phoneNumber, threadId);
+
+        // one row with the count, rather than a row per message
+        int count = 0;
+        Cursor cursor = queryInbox(new String[] { COUNT }, where, whereArgs, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    count = cursor.getInt(0);
+                }
+            }
+            finally {
+                cursor.close();
+            }
+        }
+
+        ArrayList<String> messages = new ArrayList<String>(Math.min(count, maxMessages));
+        if (count == 0 || maxMessages == 0) {
+            return new UnreadPreview(count, messages);
+        }
+
+        // providers that support the limit parameter stop there; the others are only read that far
+        Uri newest = INBOX_CONTENT_URI.buildUpon()
+                .appendQueryParameter(LIMIT_PARAMETER, Integer.toString(maxMessages))
+                .build();
+        Metrics.count(Metrics.PROVIDER_QUERIES);
+        cursor = cr.query(newest, new String[] { SMS_BODY }, where, whereArgs, SORT_NEWEST_FIRST);
+
+        if (cursor != null) {
+            try {
+                while (messages.size() < maxMessages && cursor.moveToNext()) {
+                    messages.add(cursor.getString(0));
+                }
+            }
+            finally {
+                cursor.close();
+            }
+        }
+
+        return new UnreadPreview(Math.max(count, messages.size()), messages);
+    }
+
     /**
      * Write this sent message to the SMS database.
+     * The insert is batched; call {@link #flushWrites} if it must be visible right away.
      * @param phoneNumber recipient's phone number
      * @param messageBody the text
      */
+    @Override
     public void writeSentMessage(String phoneNumber, String messageBody) {
         ContentValues values = new ContentValues();
         values.put(SMS_ADDRESS, phoneNumber);
         values.put(SMS_BODY, messageBody);
 
-        // TODO: set the thread id
+        long threadId = threadIds.getOrCreateThreadId(phoneNumber);
+        if (threadId != ThreadIdCache.NO_THREAD) {
+            values.put(SMS_THREAD_ID, threadId);
+        }
 
-        cr.insert(SENT_CONTENT_URI, values);
+        writes.add(ContentProviderOperation.newInsert(SENT_CONTENT_URI)
+                .withValues(values)
+                .build());
     }
 
     /**
-     * Get the number of unread SMS messages for the listed phone numbers.
-     * The values of the HashMap are singleton int arrays that store the count.
-     * If there are unread messages for other contacts, this will count them as well.
+     * Count the unread SMS messages from every sender.
+     * Addresses are matched on their canonical form, so formatting differences don't split counts.
+     * The map is cleared first; pass the same one each time so its arrays are reused.
      *
-     * @param phoneNumbers list of phone numbers to look for
-     * @return HashMap that maps phone numbers to counts, where counts are stored as singleton int arrays
+     * @param unreadCounts filled with canonical phone number keys (see PhoneNumberNormalizer) to counts
      */
-    public HashMap<String, int[]> getUnreadCounts(Iterable<String> phoneNumbers) {
+    @Override
+    public void getUnreadCounts(LongIntMap unreadCounts) {
+        unreadCounts.clear();
+
         // Note: This query probes all unread messages regardless of contact.
-        Cursor cursor = cr.query(INBOX_CONTENT_URI,
-                new String[] { SMS_ID, SMS_ADDRESS },
+        Cursor cursor = queryInbox(new String[] { SMS_ADDRESS },
                 WHERE_UNREAD,
                 null,
                 null);
 
-        HashMap<String, int[]> unreadCounts = new HashMap<String, int[]>();
-        for (String phoneNumber : phoneNumbers) {
-            unreadCounts.put(phoneNumber, new int[] { 0 });
+        if (cursor == null) {
+            return;
         }
 
+        try {
+            while (cursor.moveToNext()) {
+                long key = normalizer.getKey(cursor.getString(0));
+                if (key != PhoneNumberNormalizer.NO_KEY) {
+                    unreadCounts.add(key, 1);
+                }
+            }
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Get the IDs of all unread messages from this contact.
+     * @param phoneNumber phone number (not normalized)
+     * @param ids collection to add the message IDs to
+     */
+    @Override
+    public void getUnreadIds(String phoneNumber, Collection<Long> ids) {
+        long threadId = threadIds.getThreadId(phoneNumber);
+        Cursor cursor = queryInbox(new String[] { SMS_ID },
+                whereUnreadFrom(threadId),
+                unreadFromArgs(phoneNumber, threadId),
+                null);
+
         if (cursor == null) {
-            return unreadCounts;
+            return;
         }
 
         try {
-            if (cursor.moveToFirst()) {
-                final int PHONE_NUMBER_COL = cursor.getColumnIndex(SMS_ADDRESS);
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        }
+        finally {
+            cursor.close();
+        }
+    }
 
-                do {
-                    String phone = cursor.getString(PHONE_NUMBER_COL);
-                    int[] countWrapper = unreadCounts.get(phone);
-                    if (countWrapper != null) {
-                        countWrapper[0]++;
+    /**
+     * Get the highest message ID in the inbox.
+     * @return message ID, or 0 if the inbox is empty
+     */
+    @Override
+    public long getMaxInboxId() {
+        Cursor cursor = queryInbox(new String[] { SMS_ID },
+                null,
+                null,
+                SORT_NEWEST_ID_ONLY);
+
+        if (cursor == null) {
+            return 0;
+        }
+
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+        finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Find unread messages newer than a message ID from the given contacts.
+     * Only rows after afterId are read, so the cost depends on how many messages
+     * arrived rather than the size of the inbox.  The thread ID of every row read is
+     * recorded in the thread ID cache, so a recreated conversation is picked up.
+     *
+     * @param afterId only look at messages with a higher ID
+     * @param unreadIds canonical phone number keys (see PhoneNumberNormalizer) to the
+     *                  collections their new unread message IDs are added to
+     * @return the highest message ID seen, or afterId if there were no new messages
+     */
+    @Override
+    public long getUnreadSince(long afterId, Map<Long, ? extends Collection<Long>> unreadIds) {
+        Cursor cursor = queryInbox(new String[] { SMS_ID, SMS_ADDRESS, SMS_READ, SMS_THREAD_ID },
+                WHERE_AFTER_ID,
+                new String[] { Long.toString(afterId) },
+                null);
+
+        long maxId = afterId;
+        if (cursor == null) {
+            return maxId;
+        }
+
+        try {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                if (id > maxId) {
+                    maxId = id;
+                }
+
+                String address = cursor.getString(1);
+                threadIds.put(address, cursor.getLong(3));
+
+                if (cursor.getInt(2) == 0) {
+                    Collection<Long> ids = unreadIds.get(normalizer.getKey(address));
+                    if (ids != null) {
+                        ids.add(id);
                     }
-                    else {
-                        countWrapper = new int[] { 1 };
-                        unreadCounts.put(phone, countWrapper);
+                }
+            }
+        }
+        finally {
+            cursor.close();
+        }
+
+        return maxId;
+    }
+
+    /**
+     * Find which of the given messages are unread, and who they're from.
+     * Used when the observer knows exactly which rows changed.
+     *
+     * @param ids message IDs to look at
+     * @param unreadIds canonical phone number keys (see PhoneNumberNormalizer) to the
+     *                  collections their unread message IDs are added to
+     */
+    @Override
+    public void getUnreadAmong(Collection<Long> ids, Map<Long, ? extends Collection<Long>> unreadIds) {
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        Cursor cursor = queryInbox(new String[] { SMS_ID, SMS_ADDRESS, SMS_READ, SMS_THREAD_ID },
+                whereIdIn(null, ids),
+                null,
+                null);
+
+        if (cursor == null) {
+            return;
+        }
+
+        try {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                String address = cursor.getString(1);
+                threadIds.put(address, cursor.getLong(3));
+
+                if (cursor.getInt(2) == 0) {
+                    Collection<Long> unread = unreadIds.get(normalizer.getKey(address));
+                    if (unread != null) {
+                        unread.add(id);
                     }
-                } while (cursor.moveToNext());
+                }
             }
         }
         finally {
             cursor.close();
         }
+    }
 
-        return unreadCounts;
+    /**
+     * Remove the messages that are no longer unread (or no longer exist) from a collection of message IDs.
+     * @param ids message IDs, modified in place
+     */
+    @Override
+    public void retainUnread(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        Cursor cursor = queryInbox(new String[] { SMS_ID },
+                whereIdIn(WHERE_UNREAD, ids),
+                null,
+                null);
+
+        if (cursor == null) {
+            return;
+        }
+
+        HashSet<Long> stillUnread = new HashSet<Long>();
+        try {
+            while (cursor.moveToNext()) {
+                stillUnread.add(cursor.getLong(0));
+            }
+        }
+        finally {
+            cursor.close();
+        }
+
+        ids.retainAll(stillUnread);
+    }
+
+    /**
+     * @param where condition to AND with, or null
+     * @return selection for the messages with the given IDs; the IDs are numbers so they're inlined
+     */
+    private static String whereIdIn(String where, Collection<Long> ids) {
+        StringBuilder builder = new StringBuilder();
+        if (where != null) {
+            builder.append(where).append(" AND ");
+        }
+        builder.append(SMS_ID).append(" IN (");
+        boolean first = true;
+        for (Long id : ids) {
+            if (!first) {
+                builder.append(',');
+            }
+            builder.append(id.longValue());
+            first = false;
+        }
+        return builder.append(')').toString();
+    }
+
+    /**
+     * Select a contact's unread messages by thread if it's known, falling back to comparing addresses.
+     */
+    private static String whereUnreadFrom(long threadId) {
+        return threadId != ThreadIdCache.NO_THREAD ? WHERE_UNREAD_AND_THREAD : WHERE_UNREAD_AND_ADDRESS;
+    }
+
+    private static String[] unreadFromArgs(String phoneNumber, long threadId) {
+        return new String[] { threadId != ThreadIdCache.NO_THREAD ? Long.toString(threadId) : phoneNumber };
+    }
+
+    /**
+     * Query the inbox, counting the query in the Metrics.
+     */
+    private Cursor queryInbox(String[] projection, String where, String[] whereArgs, String sortOrder) {
+        Metrics.count(Metrics.PROVIDER_QUERIES);
+        return cr.query(INBOX_CONTENT_URI, projection, where, whereArgs, sortOrder);
     }
 
     /**
      * Create the SMS database observer if necessary.
+     * The observer is registered on all of content://sms, while there are active notifications.
+     * The provider notifies on content://sms/<id> and content://sms/conversations/<thread>,
+     * which an observer on the inbox URI never sees; SmsObserver filters out the changes
+     * that can't affect unread inbox messages.
      *
      * @param context Android context, used by SmsObserver
      * @param idManager to access the notification IDs of previous notifications
@@ -166,37 +502,54 @@ public class SmsDatabase {
     public void checkCreateObserver(Context context, NotificationIdManager idManager) {
         Log.v(TAG, "checkCreateObserver");
 
-        if (observer != null) {
-            Log.v(TAG, "\taborting, observer already exists");
-            return;
-        }
+        synchronized (this) {
+            if (observer != null) {
+                Log.v(TAG, "\taborting, observer already exists");
+                return;
+            }
 
-        // TODO: Handler should be set on current thread
-        observer = new SmsObserver(null, context, idManager);
+            if (idManager.getActiveNotificationPhoneNumbers().isEmpty()) {
+                Log.v(TAG, "\taborting, no active notifications to watch");
+                return;
+            }
 
-        cr.registerContentObserver(SMS_CONTENT_URI, true, observer);
+            observer = new SmsObserver(new Handler(getObserverLooper()), context, this, idManager);
+            cr.registerContentObserver(SMS_CONTENT_URI, true, observer);
+        }
 
         Log.v(TAG, "\tregistered");
     }
 
+    private synchronized Looper getObserverLooper() {
+        if (observerThread == null) {
+            observerThread = new HandlerThread("SmsObserver", Process.THREAD_PRIORITY_BACKGROUND);
+            observerThread.start();
+        }
+        return observerThread.getLooper();
+    }
+
     /**
      * Unregister the SMS database observer if there are no active notifications.
      */
     public void checkUnregisterObserver() {
         Log.v(TAG, "checkUnregisterObserver");
-        if (observer == null) {
-            Log.v(TAG, "\texiting early, observer is already null");
-            return;
-        }
+        synchronized (this) {
+            if (observer == null) {
+                Log.v(TAG, "\texiting early, observer is already null");
+                return;
+            }
 
-        // if there are any active notifications still, don't unregister
-        if (observer.getActiveNotificationPhoneNumbers().size() > 0) {
-            Log.v(TAG, "\tthere are still active notifications, not unregistering");
-            return;
-        }
+            // if there are any active notifications still, don't unregister
+            if (observer.getActiveNotificationPhoneNumbers().size() > 0) {
+                Log.v(TAG, "\tthere are still active notifications, not unregistering");
+                return;
+            }
 
-        // if there are no active notifications
-        observer = null;
+            // if there are no active notifications
+            cr.unregisterContentObserver(observer);
+            observer.stop();
+            observer = null;
+        }
         Log.v(TAG, "\tunregistered!");
     }
 }
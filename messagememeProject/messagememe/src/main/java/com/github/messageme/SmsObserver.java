@@ -1,24 +1,46 @@
 package com.github.messageme;
 
+import android.annotation.TargetApi;
 import android.app.NotificationManager;
 import android.content.Context;
 import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.github.messageme.interfaces.NotificationIdManager;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Observer/listener for changes to the SMS inbox.
  *
+ * Change events are coalesced: each one restarts a short debounce window,
+ * and a single reconciliation pass runs once the window passes without
+ * another event (or the maximum delay since the first event is reached).
+ * Events and passes both run on the Handler's thread.
+ *
+ * On Jelly Bean and up the change events say which URI changed.  Changes to
+ * other boxes (sent, outbox, drafts...) are ignored.  If every remaining
+ * event in a window names a message row (content://sms/<id> or
+ * content://sms/inbox/<id>), the pass only re-reads those rows; otherwise,
+ * e.g. for content://sms/conversations/<thread>, it reconciles all the
+ * tracked numbers.
+ *
  * Created by keith on 12/18/13.
  */
 public class SmsObserver extends ContentObserver {
     private static final String TAG = "SmsObserver";
+
+    /** from getMessageId: the change needs a full pass */
+    private static final long FULL_PASS = -1;
+    /** from getMessageId: the change can't affect unread inbox messages */
+    private static final long IGNORED = -2;
     private final Context context;
     private final Handler handler;
 
@@ -27,25 +49,197 @@ public class SmsObserver extends ContentObserver {
      */
     final NotificationIdManager idManager;
 
-    public SmsObserver(Handler handler, Context context, NotificationIdManager idManager) {
+    /**
+     * Incremental unread counts for the active notifications, so each change
+     * only reads the messages that changed.
+     */
+    private final UnreadTracker unreadTracker;
+    private final SmsDatabase smsDatabase;
+
+    private final long debounceMillis;
+    private final long maxDelayMillis;
+
+    /** SystemClock.uptimeMillis() of the first event waiting for a pass, or 0 if none are waiting */
+    private long firstPendingEvent = 0;
+
+    /** message IDs changed since the last pass */
+    private final HashSet<Long> changedIds = new HashSet<Long>();
+
+    /** true if an event since the last pass didn't say which message changed */
+    private boolean fullPassNeeded = false;
+
+    /** unread count per canonical phone number key, reused by every pass */
+    private final LongIntMap unreadCounts = new LongIntMap(16);
+
+    private final AtomicLong eventsReceived = new AtomicLong();
+    private final AtomicLong passesExecuted = new AtomicLong();
+
+    private final Runnable reconcile = new Runnable() {
+        @Override
+        public void run() {
+            firstPendingEvent = 0;
+            passesExecuted.incrementAndGet();
+            long start = Metrics.start();
+            reconcile();
+            Metrics.end(Metrics.STAGE_OBSERVER_CHANGE, start);
+        }
+    };
+
+    /**
+     * @param handler Handler for a looper thread dedicated to the observer; not the main thread
+     * @param smsDatabase where the unread counts are read from
+     */
+    public SmsObserver(Handler handler, Context context, SmsDatabase smsDatabase, NotificationIdManager idManager) {
         super(handler);
         this.handler = handler;
         this.context = context;
         this.idManager = idManager;
+        this.smsDatabase = smsDatabase;
+        this.unreadTracker = new UnreadTracker(smsDatabase);
+        this.debounceMillis = context.getResources().getInteger(R.integer.observer_debounce_ms);
+        this.maxDelayMillis = context.getResources().getInteger(R.integer.observer_max_delay_ms);
     }
 
     @Override
     public void onChange(boolean selfChange) {
-        Log.v(TAG, "onChange(" + selfChange + ")");
+        // before Jelly Bean there's no URI, so any change means a full pass
+        fullPassNeeded = true;
+        scheduleReconcile(selfChange);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void onChange(boolean selfChange, Uri uri) {
+        long id = getMessageId(uri);
+        if (id == IGNORED) {
+            Log.v(TAG, "onChange(" + uri + ") ignored");
+            return;
+        }
+        if (id == FULL_PASS) {
+            fullPassNeeded = true;
+        }
+        else {
+            changedIds.add(id);
+        }
+        scheduleReconcile(selfChange);
+    }
+
+    /**
+     * Stop any pass that's waiting, once the observer has been unregistered.
+     */
+    public void stop() {
+        handler.removeCallbacks(reconcile);
+    }
+
+    /**
+     * @return the message ID for a row URI like content://sms/123 or content://sms/inbox/123,
+     *         IGNORED for changes to the other boxes, or FULL_PASS for anything else
+     */
+    private static long getMessageId(Uri uri) {
+        if (uri == null) {
+            return FULL_PASS;
+        }
+
+        List<String> segments = uri.getPathSegments();
+        if (segments.isEmpty()) {
+            return FULL_PASS;
+        }
+        String first = segments.get(0);
+        if (segments.size() == 1 && isNumber(first)) {
+            return Long.parseLong(first);
+        }
+        if ("inbox".equals(first)) {
+            return segments.size() == 2 && isNumber(segments.get(1)) ? Long.parseLong(segments.get(1)) : FULL_PASS;
+        }
+        if ("sent".equals(first) || "outbox".equals(first) || "draft".equals(first)
+                || "queued".equals(first) || "failed".equals(first)) {
+            return IGNORED;
+        }
+        return FULL_PASS;
+    }
+
+    /**
+     * @return true if the segment is a non-negative number that fits in a long
+     */
+    private static boolean isNumber(String segment) {
+        if (segment.length() == 0 || segment.length() > 18) {
+            return false;
+        }
+        for (int i = 0; i < segment.length(); i++) {
+            if (segment.charAt(i) < '0' || segment.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void scheduleReconcile(boolean selfChange) {
+        long events = eventsReceived.incrementAndGet();
+        Metrics.count(Metrics.OBSERVER_EVENTS);
+        Log.v(TAG, "onChange(" + selfChange + "), " + events + " events, " + passesExecuted.get() + " passes");
+
+        long now = SystemClock.uptimeMillis();
+        if (firstPendingEvent == 0) {
+            firstPendingEvent = now;
+        }
+
+        // restart the window, but don't push the pass past the maximum delay
+        long delay = Math.min(debounceMillis, firstPendingEvent + maxDelayMillis - now);
+        handler.removeCallbacks(reconcile);
+        handler.postDelayed(reconcile, Math.max(delay, 0));
+    }
+
+    /**
+     * @return number of change events received
+     */
+    public long getEventsReceived() {
+        return eventsReceived.get();
+    }
+
+    /**
+     * @return number of reconciliation passes run for those events
+     */
+    public long getPassesExecuted() {
+        return passesExecuted.get();
+    }
+
+    /**
+     * Bring the unread counts up to date, correct the unread mirror with them, and dismiss
+     * notifications with nothing left unread.
+     */
+    private void reconcile() {
         Iterable<String> phoneNumbers = getActiveNotificationPhoneNumbers();
-        HashMap<String,int[]> unreadCounts = new SmsDatabase(context.getContentResolver()).getUnreadCounts(phoneNumbers);
+        if (fullPassNeeded) {
+            Log.v(TAG, "reconcile()");
+            unreadTracker.update(phoneNumbers, unreadCounts);
+        }
+        else {
+            Log.v(TAG, "reconcile(" + changedIds.size() + " messages)");
+            unreadTracker.updateRows(phoneNumbers, changedIds, unreadCounts);
+        }
+        fullPassNeeded = false;
+        changedIds.clear();
+        MessageMeApplication.get(context).getUnreadMirror()
+                .applyCounts(phoneNumbers, unreadCounts, SystemClock.elapsedRealtime());
 
-        for (Map.Entry<String, int[]> pair : unreadCounts.entrySet()) {
-            Log.v(TAG, "\t" + pair.getKey() + ": " + pair.getValue()[0] + " unread messages");
-            if (pair.getValue()[0] == 0) {
-                dismissNotification(pair.getKey());
+        PhoneNumberNormalizer normalizer = smsDatabase.getNormalizer();
+        boolean dismissed = false;
+        for (String phoneNumber : phoneNumbers) {
+            int count = unreadCounts.get(normalizer.getKey(phoneNumber), 0);
+            Log.v(TAG, "\t" + phoneNumber + ": " + count + " unread messages");
+            if (count == 0) {
+                dismissNotification(phoneNumber);
+                dismissed = true;
             }
         }
+
+        if (dismissed) {
+            // the summary notification, if any, has to drop them too
+            MessageMeApplication.get(context).getNotificationScheduler().refresh();
+
+            // nothing left to watch once every notification is gone
+            smsDatabase.checkUnregisterObserver();
+        }
     }
 
     /**
@@ -55,6 +249,7 @@ public class SmsObserver extends ContentObserver {
      */
     private void dismissNotification(String phoneNumber) {
         Log.v(TAG, "dismissNotification(" + phoneNumber + ")");
+        Metrics.count(Metrics.DISMISSALS);
 
         // clear the notification (if there is one)
         NotificationManager notificationManager =
@@ -63,6 +258,9 @@ public class SmsObserver extends ContentObserver {
 
         // clear the tracking
         idManager.removeNotificationPhoneNumber(phoneNumber);
+        // no longer corrected by the passes, so reload it from the provider next time
+        MessageMeApplication.get(context).getUnreadMirror().forget(phoneNumber);
+        MessageMeApplication.get(context).getThreadIdCache().invalidate(phoneNumber);
     }
 
     public Set<String> getActiveNotificationPhoneNumbers() {
@@ -0,0 +1,16 @@
+package com.github.messageme;
+
+import android.telephony.SmsMessage;
+
+import com.github.messageme.interfaces.PduDecoder;
+
+/**
+ * Decodes PDUs with the platform's SmsMessage.
+ */
+class SmsPduDecoder implements PduDecoder {
+    @Override
+    public IncomingSms decode(byte[] pdu, long receivedAt) {
+        SmsMessage message = SmsMessage.createFromPdu(pdu);
+        return new IncomingSms(message.getDisplayOriginatingAddress(), message.getDisplayMessageBody(), receivedAt);
+    }
+}
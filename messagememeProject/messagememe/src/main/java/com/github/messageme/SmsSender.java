@@ -4,14 +4,15 @@ import android.app.NotificationManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.telephony.SmsManager;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
 /**
  * BroadcastReceiver for Intent to send an SMS message.
  * The notification generates the Intent and this class
- * handles it by sending the message.
+ * handles it by queueing the message in the Outbox.
+ * It also receives the Outbox's sent/delivered results and retry alarms.
  *
  * Created by ryan on 11/17/13.
  */
@@ -19,14 +20,23 @@ public class SmsSender extends BroadcastReceiver {
 
     private static final String TAG = "SmsSender";
     public static final String AUTO_RESPONSE_INTENT = "com.github.messageme.AUTO_RESPONSE";
+    private static final String BOOT_COMPLETED_INTENT = "android.intent.action.BOOT_COMPLETED";
     public static final boolean LOG_SMS_ONLY = false;
-    private SmsDatabase smsDatabase;
 
     @Override
     public void onReceive(Context context, Intent intent) {
         if (AUTO_RESPONSE_INTENT.equals(intent.getAction())) {
             handleSendIntent(context, intent);
         }
+        else if (Outbox.ACTION_SENT.equals(intent.getAction())) {
+            MessageMeApplication.get(context).getOutbox().onSent(intent, getResultCode(), goAsync());
+        }
+        else if (Outbox.ACTION_DELIVERED.equals(intent.getAction())) {
+            MessageMeApplication.get(context).getOutbox().onDelivered(intent);
+        }
+        else if (Outbox.ACTION_RETRY.equals(intent.getAction()) || BOOT_COMPLETED_INTENT.equals(intent.getAction())) {
+            MessageMeApplication.get(context).getOutbox().resume(goAsync());
+        }
         else {
             Log.e(TAG, "Received unknown intent: " + intent);
         }
@@ -34,6 +44,7 @@ public class SmsSender extends BroadcastReceiver {
 
     public void handleSendIntent(Context context, Intent intent) {
         Log.v(TAG, "handleSendIntent");
+        long start = Metrics.start();
 
         String destination = intent.getStringExtra(SmsReceiver.DESTINATION_ADDRESS);
         String body = intent.getStringExtra(SmsReceiver.BODY);
@@ -44,14 +55,8 @@ public class SmsSender extends BroadcastReceiver {
             Toast.makeText(context, "Fake send to " + destination, Toast.LENGTH_LONG).show();
         }
         else {
-            // TODO: Set pending intents for success/fail and alert the user on failure
-            // and maybe don't write to sent messages if it failed to send
-            SmsManager.getDefault().sendTextMessage(destination, null, body, null, null);
-
-            if (smsDatabase == null) {
-                smsDatabase = new SmsDatabase(context.getContentResolver());
-            }
-            smsDatabase.writeSentMessage(destination, body);
+            // written to the sent messages once the Outbox confirms it was sent
+            MessageMeApplication.get(context).getOutbox().enqueue(destination, body, goAsync());
         }
 
         // clear the notification
@@ -59,10 +64,13 @@ public class SmsSender extends BroadcastReceiver {
                 (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
         notificationManager.cancel(intent.getIntExtra(SmsReceiver.NOTIFICATION_ID, -1));
 
-        if (smsDatabase == null) {
-            smsDatabase = new SmsDatabase(context.getContentResolver());
-        }
+        MessageMeApplication app = MessageMeApplication.get(context);
+        SmsDatabase smsDatabase = app.getSmsDatabase();
         smsDatabase.markRead(destination);
+        app.getUnreadMirror().markRead(destination, SystemClock.elapsedRealtime());
+
+        smsDatabase.flushWrites();
         smsDatabase.checkUnregisterObserver();
+        Metrics.end(Metrics.STAGE_SEND, start);
     }
 }
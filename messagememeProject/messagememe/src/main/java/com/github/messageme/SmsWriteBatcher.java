@@ -0,0 +1,98 @@
+package com.github.messageme;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues writes to the SMS provider and applies them with applyBatch, so
+ * several inserts and updates cost one binder transaction.
+ *
+ * A batch is applied when it reaches the size limit, when the oldest queued
+ * write has waited for the delay, or when {@link #flush} is called.  Callers
+ * that need to read their own writes, or that may be about to let the
+ * process die (e.g. at the end of onReceive), must flush.
+ */
+public class SmsWriteBatcher {
+    private static final String TAG = "SmsWriteBatcher";
+    private static final String SMS_AUTHORITY = "sms";
+
+    private final ContentResolver cr;
+    private final int maxOperations;
+    private final long maxDelayMillis;
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+    private ArrayList<ContentProviderOperation> pending = new ArrayList<ContentProviderOperation>();
+    private boolean flushScheduled = false;
+
+    /** held while a batch is being applied, so batches are applied in the order they were queued */
+    private final Object applyLock = new Object();
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param maxOperations apply as soon as this many writes are queued
+     * @param maxDelayMillis longest a write waits before being applied
+     */
+    public SmsWriteBatcher(ContentResolver resolver, int maxOperations, long maxDelayMillis) {
+        cr = resolver;
+        this.maxOperations = maxOperations;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Queue a write to the SMS provider.
+     */
+    public void add(ContentProviderOperation operation) {
+        synchronized (this) {
+            pending.add(operation);
+
+            if (pending.size() >= maxOperations) {
+                flusher.execute(flushTask);
+                return;
+            }
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+
+        flusher.schedule(flushTask, maxDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Apply all queued writes now, on the calling thread.
+     */
+    public void flush() {
+        synchronized (applyLock) {
+            ArrayList<ContentProviderOperation> operations;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                operations = pending;
+                pending = new ArrayList<ContentProviderOperation>();
+                flushScheduled = false;
+            }
+
+            Log.v(TAG, "applying " + operations.size() + " operations");
+            try {
+                cr.applyBatch(SMS_AUTHORITY, operations);
+            } catch (Exception e) {
+                // RemoteException or OperationApplicationException; the provider doesn't roll back,
+                // so earlier operations in the batch may have been applied
+                Log.e(TAG, "Failed to apply " + operations.size() + " SMS operations", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.messageme;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.IBinder;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * Makes the Metrics available to dumpsys.  The service does nothing else;
+ * it only has to be running for the system to call dump():
+ *
+ *   adb shell am startservice -n com.github.messageme/.StatsService
+ *   adb shell dumpsys activity service com.github.messageme/.StatsService
+ *
+ * Pass "reset" after the service name to clear the stats.
+ */
+public class StatsService extends Service {
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length > 0 && "reset".equals(args[0])) {
+            Metrics.reset();
+            writer.println("Stats reset");
+            return;
+        }
+        writeStats(this, writer);
+    }
+
+    /**
+     * Write the stage latencies and counters, followed by the rate limiter and outbox counts.
+     */
+    static void writeStats(Context context, PrintWriter writer) {
+        Metrics.dump(writer);
+
+        NotificationRateLimiter rateLimiter = MessageMeApplication.get(context).getReceivePipeline().getRateLimiter();
+        writer.println(String.format("%-18s %8d", "rate allowed", rateLimiter.getAllowedCount()));
+        writer.println(String.format("%-18s %8d", "rate held", rateLimiter.getSuppressedCount()));
+        writer.println(String.format("%-18s %8d", "merged renders", rateLimiter.getMergedRenderCount()));
+
+        Outbox outbox = MessageMeApplication.get(context).getOutbox();
+        writer.println(String.format("%-18s %8d", "replies sent", outbox.getSentCount()));
+        writer.println(String.format("%-18s %8d", "replies delivered", outbox.getDeliveredCount()));
+        writer.println(String.format("%-18s %8d", "reply retries", outbox.getRetryCount()));
+        writer.println(String.format("%-18s %8d", "replies failed", outbox.getFailedCount()));
+        writer.println(String.format("%-18s %8d", "avg send ms", outbox.getAverageSendMillis()));
+    }
+}